@@ -1,8 +1,19 @@
 package org.math.R;
 
+import java.io.File;
+
 public interface EvalListener {
 
     /**Notify the evaluation of R expressio
      * @param e String evaluated*/
     public void eval(String e);
+
+    /**Notify the end of the evaluation of a statement of a sourced file
+     * @param file - file sourced
+     * @param statement - index of the statement in the file (from 1)
+     * @param e - statement evaluated
+     * @param translationTime - time to translate the statement (ms, if the session translates it)
+     * @param evaluationTime - time to evaluate the statement (ms)*/
+    default void sourced(File file, int statement, String e, long translationTime, long evaluationTime) {
+    }
 }
@@ -0,0 +1,102 @@
+package org.math.R;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded map evicting the least recently used entry when full, and counting
+ * hits/misses so that its size can be tuned.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class LRUCache<K, V> {
+
+    private final LinkedHashMap<K, V> entries;
+    private int maxSize;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxSize - maximum number of entries kept (0 disables the cache)
+     */
+    public LRUCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > LRUCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key - the key to look for
+     * @return the cached value, or null if not found (counted as a miss)
+     */
+    public synchronized V get(K key) {
+        V v = entries.get(key);
+        if (v == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return v;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (maxSize > 0) {
+            entries.put(key, value);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Change the maximum number of entries. Exceeding entries are evicted at
+     * next put.
+     *
+     * @param maxSize - maximum number of entries kept (0 disables the cache)
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        if (maxSize <= 0) {
+            entries.clear();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return ratio of hits over all lookups (0 if no lookup yet)
+     */
+    public synchronized double getHitRate() {
+        long n = hits + misses;
+        return n == 0 ? 0 : (double) hits / n;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + entries.size() + "/" + maxSize + " hits=" + hits + " misses=" + misses;
+    }
+}
@@ -0,0 +1,276 @@
+package org.math.R;
+
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+
+/**
+ * Linear algebra kernels used by linalg.js in R2jsSession (%*%, t, solve,
+ * determinant), working on java primitive arrays instead of interpreted
+ * math.js code. Algorithms and tolerances are the ones of math.js (LU
+ * decomposition with partial pivoting, substitutions), so results are the
+ * same.
+ */
+public class R2jsLinearAlgebra {
+
+    // math.js config.epsilon, used to compare values (see nearlyEqual)
+    private static final double EPSILON = 1e-12;
+    private static final double DBL_EPSILON = Math.ulp(1.0);
+
+    private R2jsLinearAlgebra() {
+    }
+
+    /**
+     * @param o - a js value
+     * @return values of o if it is a js matrix (array of rows of numbers with
+     * same length), else null
+     */
+    public static double[][] asMatrix(Object o) {
+        if (!(o instanceof ScriptObjectMirror)) {
+            return null;
+        }
+        double[][] m = R2jsSession.toDoubleRows((ScriptObjectMirror) o);
+        if (m == null) {
+            return null;
+        }
+        for (double[] row : m) {
+            if (row.length != m[0].length) {
+                return null;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * @param o - a js value
+     * @return values of o if it is a js vector (array of numbers), else null
+     */
+    public static double[] asVector(Object o) {
+        if (!(o instanceof ScriptObjectMirror)) {
+            return null;
+        }
+        return R2jsSession.toDoubles((ScriptObjectMirror) o);
+    }
+
+    /**
+     * @param a - matrix
+     * @param b - matrix with as many rows as a columns
+     * @return a %*% b
+     */
+    public static double[][] multiply(double[][] a, double[][] b) {
+        int n = b.length;
+        int m = n == 0 ? 0 : b[0].length;
+        double[][] c = new double[a.length][];
+        for (int i = 0; i < a.length; i++) {
+            double[] ai = a[i];
+            double[] ci = new double[m];
+            // sum of a[i][k]*b[k][j] by increasing k (as math.js), row by row of b
+            double[] b0 = b[0];
+            for (int j = 0; j < m; j++) {
+                ci[j] = ai[0] * b0[j];
+            }
+            for (int k = 1; k < n; k++) {
+                double aik = ai[k];
+                double[] bk = b[k];
+                for (int j = 0; j < m; j++) {
+                    ci[j] += aik * bk[j];
+                }
+            }
+            c[i] = ci;
+        }
+        return c;
+    }
+
+    /**
+     * @param a - matrix
+     * @return t(a)
+     */
+    public static double[][] transpose(double[][] a) {
+        int m = a.length == 0 ? 0 : a[0].length;
+        double[][] t = new double[m][a.length];
+        for (int i = 0; i < a.length; i++) {
+            double[] ai = a[i];
+            for (int j = 0; j < m; j++) {
+                t[j][i] = ai[j];
+            }
+        }
+        return t;
+    }
+
+    /**
+     * @param a - square matrix
+     * @return determinant of a
+     */
+    public static double det(double[][] a) {
+        int n = a.length;
+        checkSquare(a);
+        if (n == 1) {
+            return a[0][0];
+        } else if (n == 2) {
+            return a[0][0] * a[1][1] - a[1][0] * a[0][1];
+        }
+        int[] p = new int[n];
+        double[][] lu = lup(a, p);
+        double d = lu[0][0];
+        for (int i = 1; i < n; i++) {
+            d *= lu[i][i];
+        }
+        return permutationSign(p) * d;
+    }
+
+    /**
+     * Solve a %*% x = b
+     *
+     * @param a - square matrix
+     * @param b - matrix (one system solved by column), with as many rows as a
+     * @return x
+     */
+    public static double[][] solve(double[][] a, double[][] b) {
+        int n = a.length;
+        checkSquare(a);
+        if (b.length != n) {
+            throw new IllegalArgumentException("Dimension mismatch. Matrix columns (" + n + ") must match Vector length (" + b.length + ")");
+        }
+        int[] p = new int[n];
+        double[][] lu = lup(a, p);
+        int m = n == 0 ? 0 : b[0].length;
+        double[][] x = new double[n][m];
+        double[] y = new double[n];
+        for (int c = 0; c < m; c++) {
+            for (int i = 0; i < n; i++) {
+                y[i] = b[p[i]][c];
+            }
+            // forward substitution with L (unit diagonal)
+            for (int j = 0; j < n; j++) {
+                double yj = y[j];
+                if (isZero(yj)) {
+                    y[j] = 0;
+                    continue;
+                }
+                for (int i = j + 1; i < n; i++) {
+                    y[i] = y[i] - yj * lu[i][j];
+                }
+            }
+            // backward substitution with U
+            for (int j = n - 1; j >= 0; j--) {
+                double yj = y[j];
+                if (isZero(yj)) {
+                    x[j][c] = 0;
+                    continue;
+                }
+                double vjj = lu[j][j];
+                if (isZero(vjj)) {
+                    throw new IllegalArgumentException("Linear system cannot be solved since matrix is singular");
+                }
+                double xj = yj / vjj;
+                for (int i = j - 1; i >= 0; i--) {
+                    y[i] = y[i] - xj * lu[i][j];
+                }
+                x[j][c] = xj;
+            }
+        }
+        return x;
+    }
+
+    /**
+     * @param a - square matrix
+     * @return inverse of a (as solve(a) in R)
+     */
+    public static double[][] inverse(double[][] a) {
+        double[][] id = new double[a.length][a.length];
+        for (int i = 0; i < a.length; i++) {
+            id[i][i] = 1;
+        }
+        return solve(a, id);
+    }
+
+    private static void checkSquare(double[][] a) {
+        if (a.length == 0 || a[0].length != a.length) {
+            throw new IllegalArgumentException("Matrix must be square (size: [" + a.length + ", " + (a.length == 0 ? 0 : a[0].length) + "])");
+        }
+    }
+
+    // LU decomposition with partial pivoting (as math.js lup): returns L (below
+    // diagonal, unit diagonal omitted) and U in one matrix, and the rows
+    // permutation in p (row i of L*U is row p[i] of a)
+    private static double[][] lup(double[][] a, int[] p) {
+        int rows = a.length;
+        int columns = a[0].length;
+        double[][] data = new double[rows][];
+        for (int i = 0; i < rows; i++) {
+            data[i] = a[i].clone();
+            p[i] = i;
+        }
+        for (int j = 0; j < columns; j++) {
+            if (j > 0) {
+                for (int i = 0; i < rows; i++) {
+                    int min = Math.min(i, j);
+                    double s = 0;
+                    for (int k = 0; k < min; k++) {
+                        s += data[i][k] * data[k][j];
+                    }
+                    data[i][j] = data[i][j] - s;
+                }
+            }
+            // pivot: row with largest absolute value in column j, from row j
+            int pi = j;
+            double pabsv = 0;
+            double vjj = 0;
+            for (int i = j; i < rows; i++) {
+                double v = data[i][j];
+                double absv = Math.abs(v);
+                if (absv > pabsv && !nearlyEqual(absv, pabsv)) {
+                    pi = i;
+                    pabsv = absv;
+                    vjj = v;
+                }
+            }
+            if (j != pi) {
+                int t = p[j];
+                p[j] = p[pi];
+                p[pi] = t;
+                double[] r = data[j];
+                data[j] = data[pi];
+                data[pi] = r;
+            }
+            for (int i = j + 1; i < rows; i++) {
+                if (!isZero(data[i][j])) {
+                    data[i][j] = data[i][j] / vjj;
+                }
+            }
+        }
+        return data;
+    }
+
+    // 1 if the permutation is even, else -1
+    private static int permutationSign(int[] p) {
+        boolean[] visited = new boolean[p.length];
+        int sign = 1;
+        for (int i = 0; i < p.length; i++) {
+            int length = 0;
+            for (int j = i; !visited[j]; j = p[j]) {
+                visited[j] = true;
+                length++;
+            }
+            if (length > 0 && length % 2 == 0) {
+                sign = -sign;
+            }
+        }
+        return sign;
+    }
+
+    // math.js nearlyEqual(x, 0, epsilon)
+    private static boolean isZero(double x) {
+        return x == 0 || Math.abs(x) < DBL_EPSILON;
+    }
+
+    // math.js nearlyEqual(x, y, epsilon)
+    private static boolean nearlyEqual(double x, double y) {
+        if (x == y) {
+            return true;
+        }
+        if (Double.isNaN(x) || Double.isNaN(y) || Double.isInfinite(x) || Double.isInfinite(y)) {
+            return false;
+        }
+        double diff = Math.abs(x - y);
+        return diff < DBL_EPSILON || diff <= Math.max(Math.abs(x), Math.abs(y)) * EPSILON;
+    }
+}
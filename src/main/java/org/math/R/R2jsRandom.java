@@ -0,0 +1,217 @@
+package org.math.R;
+
+import java.util.SplittableRandom;
+
+/**
+ * Random generators used by rand.js in R2jsSession: values are generated in
+ * bulk, in java arrays. Each session (or environment, if they are concurrent)
+ * owns its generator, so they do not contend on a shared one, and can be
+ * seeded (set.seed) to get reproducible results.
+ */
+public class R2jsRandom {
+
+    private SplittableRandom random;
+
+    public R2jsRandom() {
+        random = new SplittableRandom();
+    }
+
+    /**
+     * @param seed - the seed of the generator
+     */
+    public R2jsRandom(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    private R2jsRandom(SplittableRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * Restart the generator with given seed (like set.seed in R).
+     *
+     * @param seed - the seed
+     */
+    public synchronized void setSeed(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    /**
+     * @return a new generator, independent of this one (for another
+     * environment or thread)
+     */
+    public synchronized R2jsRandom split() {
+        return new R2jsRandom(random.split());
+    }
+
+    /**
+     * @param n - number of values
+     * @param min - lower bound
+     * @param max - upper bound
+     * @return uniformly distributed values in [min,max)
+     */
+    public synchronized double[] runif(int n, double min, double max) {
+        double[] x = new double[n];
+        double d = max - min;
+        for (int i = 0; i < n; i++) {
+            x[i] = min + d * random.nextDouble();
+        }
+        return x;
+    }
+
+    /**
+     * @param n - number of values
+     * @param mean - mean
+     * @param sd - standard deviation
+     * @return normally distributed values
+     */
+    public synchronized double[] rnorm(int n, double mean, double sd) {
+        double[] x = new double[n];
+        normals(x);
+        for (int i = 0; i < n; i++) {
+            x[i] = mean + sd * x[i];
+        }
+        return x;
+    }
+
+    /**
+     * @param n - number of values
+     * @param lambda - mean
+     * @return Poisson distributed values
+     */
+    public synchronized double[] rpois(int n, double lambda) {
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = poisson(lambda);
+        }
+        return x;
+    }
+
+    /**
+     * @param n - number of values
+     * @param df - degrees of freedom
+     * @return chi-squared distributed values
+     */
+    public synchronized double[] rchisq(int n, double df) {
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = 2 * gamma(df / 2);
+        }
+        return x;
+    }
+
+    /**
+     * @param n - number of values
+     * @param location - location
+     * @param scale - scale
+     * @return Cauchy distributed values
+     */
+    public synchronized double[] rcauchy(int n, double location, double scale) {
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = location + scale * Math.tan(Math.PI * (random.nextDouble() - 0.5));
+        }
+        return x;
+    }
+
+    // fill x with standard normal values, two at a time (Marsaglia polar method)
+    private void normals(double[] x) {
+        for (int i = 0; i < x.length; i += 2) {
+            double v1, v2, s;
+            do {
+                v1 = 2 * random.nextDouble() - 1;
+                v2 = 2 * random.nextDouble() - 1;
+                s = v1 * v1 + v2 * v2;
+            } while (s == 0 || s >= 1);
+            double f = Math.sqrt(-2 * Math.log(s) / s);
+            x[i] = v1 * f;
+            if (i + 1 < x.length) {
+                x[i + 1] = v2 * f;
+            }
+        }
+    }
+
+    private double normal() {
+        double v1, v2, s;
+        do {
+            v1 = 2 * random.nextDouble() - 1;
+            v2 = 2 * random.nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while (s == 0 || s >= 1);
+        return v1 * Math.sqrt(-2 * Math.log(s) / s);
+    }
+
+    // Poisson value: multiplication of uniforms for small lambda, else
+    // transformed rejection (Hormann, "The transformed rejection method for
+    // generating Poisson random variables", 1993)
+    private double poisson(double lambda) {
+        if (lambda < 10) {
+            double l = Math.exp(-lambda);
+            int k = 0;
+            double p = random.nextDouble();
+            while (p > l) {
+                k++;
+                p *= random.nextDouble();
+            }
+            return k;
+        }
+        double slam = Math.sqrt(lambda);
+        double loglam = Math.log(lambda);
+        double b = 0.931 + 2.53 * slam;
+        double a = -0.059 + 0.02483 * b;
+        double invalpha = 1.1239 + 1.1328 / (b - 3.4);
+        double vr = 0.9277 - 3.6224 / (b - 2);
+        while (true) {
+            double u = random.nextDouble() - 0.5;
+            double v = random.nextDouble();
+            double us = 0.5 - Math.abs(u);
+            double k = Math.floor((2 * a / us + b) * u + lambda + 0.43);
+            if (us >= 0.07 && v <= vr) {
+                return k;
+            }
+            if (k < 0 || (us < 0.013 && v > us)) {
+                continue;
+            }
+            if (Math.log(v) + Math.log(invalpha) - Math.log(a / (us * us) + b) <= -lambda + k * loglam - logGamma(k + 1)) {
+                return k;
+            }
+        }
+    }
+
+    // Gamma(shape,1) value (Marsaglia & Tsang, "A simple method for
+    // generating gamma variables", 2000)
+    private double gamma(double shape) {
+        if (shape < 1) {
+            return gamma(shape + 1) * Math.pow(random.nextDouble(), 1 / shape);
+        }
+        double d = shape - 1.0 / 3;
+        double c = 1 / Math.sqrt(9 * d);
+        while (true) {
+            double z, v;
+            do {
+                z = normal();
+                v = 1 + c * z;
+            } while (v <= 0);
+            v = v * v * v;
+            double u = random.nextDouble();
+            if (u < 1 - 0.0331 * z * z * z * z || Math.log(u) < 0.5 * z * z + d * (1 - v + Math.log(v))) {
+                return d * v;
+            }
+        }
+    }
+
+    private static final double[] LANCZOS = {0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+        771.32342877765313, -176.61502916214059, 12.507343278686905, -0.13857109526572012,
+        9.9843695780195716e-6, 1.5056327351493116e-7};
+
+    // log(Gamma(x)) for x >= 1 (Lanczos approximation)
+    static double logGamma(double x) {
+        x -= 1;
+        double s = LANCZOS[0];
+        for (int i = 1; i < LANCZOS.length; i++) {
+            s += LANCZOS[i] / (x + i);
+        }
+        double t = x + LANCZOS.length - 1.5;
+        return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(s);
+    }
+}
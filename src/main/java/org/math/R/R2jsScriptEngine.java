@@ -0,0 +1,334 @@
+package org.math.R;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+import jdk.nashorn.api.scripting.JSObject;
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+
+/**
+ * js engine of one R2jsSession: scripts are evaluated in a global scope owned
+ * by this session, while the underlying js engine (so the compiled code and the
+ * libraries loaded with getLibrary) is shared with all sessions using the same
+ * engine options.
+ *
+ * The underlying engine is Nashorn: sessions convert their values from Nashorn
+ * objects (ScriptObjectMirror, JSObject).
+ */
+public class R2jsScriptEngine extends AbstractScriptEngine implements Compilable {
+
+    // Shared js engines, keyed by engine options
+    private static final Map<String, Shared> sharedEngines = new HashMap<>();
+
+    /**
+     * js engine and libraries shared by sessions with same engine options
+     */
+    private static class Shared {
+
+        final ScriptEngine engine;
+        // Objects defined by libraries, loaded once for all sessions (see getLibrary)
+        final Map<String, Object> libraries = new HashMap<>();
+        // Global scope of these libraries
+        ScriptContext librariesContext;
+        // Compiled libraries, evaluated in each session (see loadLibrary)
+        final Map<String, CompiledScript> compiledLibraries = new HashMap<>();
+        // Compiled scripts of the sessions, keyed by js expression (see getCompiledScriptCache)
+        final LRUCache<String, CompiledScript> compiledScripts = new LRUCache<>(1000);
+
+        Shared(ScriptEngine engine) {
+            this.engine = engine;
+        }
+    }
+
+    private final Shared shared;
+    // The underlying (shared) js engine
+    final ScriptEngine engine;
+    // Context used by the current thread instead of the default one (see setThreadContext)
+    private final ThreadLocal<ScriptContext> threadContext = new ThreadLocal<>();
+
+    private R2jsScriptEngine(Shared shared) {
+        this.shared = shared;
+        this.engine = shared.engine;
+        setContext(newContext());
+    }
+
+    /**
+     * Create a new context, with its own global scope, evaluated by this
+     * engine (so sharing the libraries loaded with getLibrary).
+     *
+     * @return the new context
+     */
+    public ScriptContext newContext() {
+        ScriptContext c = new SimpleScriptContext();
+        c.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+        return c;
+    }
+
+    /**
+     * Set the context used by the current thread for eval, put, get, ...
+     * Other threads are not affected, so they may evaluate scripts in their
+     * own context at the same time.
+     *
+     * @param c - the context (null to use the default context again)
+     */
+    public void setThreadContext(ScriptContext c) {
+        if (c == null) {
+            threadContext.remove();
+        } else {
+            threadContext.set(c);
+        }
+    }
+
+    /**
+     * @return the context of the current thread (see setThreadContext), or the
+     * default context
+     */
+    @Override
+    public ScriptContext getContext() {
+        ScriptContext c = threadContext.get();
+        return c == null ? context : c;
+    }
+
+    /**
+     * Create a js engine with its own global scope, sharing the underlying js
+     * engine with all previous instances created with the same options.
+     *
+     * @param options - Nashorn options (like "--optimistic-types=false"), may
+     * be empty
+     * @return the js engine of a new session
+     */
+    public static R2jsScriptEngine newInstance(String... options) {
+        return newInstance(null, options);
+    }
+
+    /**
+     * Create a js engine with its own global scope, sharing the underlying js
+     * engine with all previous instances created with the same code cache and
+     * options.
+     *
+     * The code cache directory is given to Nashorn by the
+     * "nashorn.persistent.code.cache" system property, which is global to the
+     * jvm: it is only set while the engine is created (Nashorn reads it then),
+     * and restored after.
+     *
+     * @param codeCache - directory of the persistent code cache, or null
+     * @param options - Nashorn options (like "--optimistic-types=false"), may
+     * be empty
+     * @return the js engine of a new session
+     */
+    public static R2jsScriptEngine newInstance(File codeCache, String... options) {
+        Shared shared;
+        synchronized (sharedEngines) {
+            String key = String.join(" ", options) + (codeCache == null ? "" : " " + CODE_CACHE_PROPERTY + "=" + codeCache.getAbsolutePath());
+            shared = sharedEngines.get(key);
+            if (shared == null) {
+                ScriptEngine engine;
+                if (codeCache != null) {
+                    engine = newNashornEngine(codeCache, options);
+                } else if (options.length == 0) {
+                    engine = new ScriptEngineManager().getEngineByName("js");
+                } else {
+                    engine = new NashornScriptEngineFactory().getScriptEngine(options);
+                }
+                if (engine == null) {
+                    throw new IllegalStateException("No js engine available");
+                }
+                shared = new Shared(engine);
+                sharedEngines.put(key, shared);
+            }
+        }
+        return new R2jsScriptEngine(shared);
+    }
+
+    // System property giving the persistent code cache directory to Nashorn
+    private static final String CODE_CACHE_PROPERTY = "nashorn.persistent.code.cache";
+
+    // Nashorn engine using codeCache as persistent code cache (should be called with lock on sharedEngines)
+    private static ScriptEngine newNashornEngine(File codeCache, String[] options) {
+        String[] o = Arrays.copyOf(options, options.length + 1);
+        o[options.length] = "--persistent-code-cache=true";
+        String previous = System.getProperty(CODE_CACHE_PROPERTY);
+        System.setProperty(CODE_CACHE_PROPERTY, codeCache.getAbsolutePath());
+        try {
+            return new NashornScriptEngineFactory().getScriptEngine(o);
+        } finally {
+            if (previous == null) {
+                System.clearProperty(CODE_CACHE_PROPERTY);
+            } else {
+                System.setProperty(CODE_CACHE_PROPERTY, previous);
+            }
+        }
+    }
+
+    /**
+     * Get an object defined by a js library. The library is evaluated only
+     * once, in a dedicated global scope, and the object is then shared by all
+     * sessions.
+     *
+     * @param name - name of the object defined by the library
+     * @param resource - the library resource file
+     * @return the object (a mirror for the session global scopes)
+     * @throws ScriptException
+     */
+    public Object getLibrary(String name, String resource) throws ScriptException {
+        synchronized (shared.libraries) {
+            Object o = shared.libraries.get(name);
+            if (o == null) {
+                engine.eval(new InputStreamReader(getClass().getResourceAsStream(resource), Charset.forName("UTF-8")), librariesContext());
+                o = shared.librariesContext.getAttribute(name, ScriptContext.ENGINE_SCOPE);
+                shared.libraries.put(name, o);
+            }
+            return o;
+        }
+    }
+
+    // should be called with lock on shared.libraries
+    private ScriptContext librariesContext() {
+        if (shared.librariesContext == null) {
+            shared.librariesContext = new SimpleScriptContext();
+            shared.librariesContext.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+        }
+        return shared.librariesContext;
+    }
+
+    /**
+     * Convert a java matrix to a js array of rows, created in the global scope
+     * of shared libraries (like math.js results). Values are passed as java
+     * arrays, so without any text serialization.
+     *
+     * @param data - values, as an array of rows
+     * @return the js matrix (a mirror for the session global scopes)
+     * @throws ScriptException
+     */
+    public Object toMatrix(double[][] data) throws ScriptException {
+        JSObject fromJava;
+        synchronized (shared.libraries) {
+            fromJava = (JSObject) shared.libraries.get(FROM_JAVA_MATRIX);
+            if (fromJava == null) {
+                fromJava = (JSObject) engine.eval("(function(d) {"
+                        + "var m = new Array(d.length);"
+                        + "for (var i = 0; i < d.length; i++) {m[i] = Java.from(d[i]);}"
+                        + "return m;})", librariesContext());
+                shared.libraries.put(FROM_JAVA_MATRIX, fromJava);
+            }
+        }
+        return fromJava.call(null, (Object) data);
+    }
+
+    private static final String FROM_JAVA_MATRIX = "__fromJavaMatrix";
+
+    /**
+     * Get the cache of compiled scripts, shared by all sessions of the
+     * underlying js engine: a compiled script does not depend on the context
+     * it is evaluated in, so a script compiled for one session is evaluated
+     * as is in the global scope of the others.
+     *
+     * @return the cache, keyed by js expression
+     */
+    public LRUCache<String, CompiledScript> getCompiledScriptCache() {
+        return shared.compiledScripts;
+    }
+
+    /**
+     * @return true if the underlying js engine compiles scripts (so compile()
+     * may be called)
+     */
+    public boolean isCompilable() {
+        return engine instanceof Compilable;
+    }
+
+    /**
+     * Evaluate a js library in this session global scope. The library is only
+     * compiled once for all sessions.
+     *
+     * @param resource - the library resource file
+     * @throws ScriptException
+     */
+    public void loadLibrary(String resource) throws ScriptException {
+        CompiledScript script;
+        synchronized (shared.compiledLibraries) {
+            script = shared.compiledLibraries.get(resource);
+            if (script == null) {
+                script = compile(new InputStreamReader(getClass().getResourceAsStream(resource), Charset.forName("UTF-8")));
+                shared.compiledLibraries.put(resource, script);
+            }
+        }
+        script.eval(getContext());
+    }
+
+    @Override
+    public Object eval(String script) throws ScriptException {
+        return eval(script, getContext());
+    }
+
+    @Override
+    public Object eval(Reader reader) throws ScriptException {
+        return eval(reader, getContext());
+    }
+
+    @Override
+    public Bindings getBindings(int scope) {
+        return getContext().getBindings(scope);
+    }
+
+    @Override
+    public void setBindings(Bindings bindings, int scope) {
+        getContext().setBindings(bindings, scope);
+    }
+
+    @Override
+    protected ScriptContext getScriptContext(Bindings nn) {
+        ScriptContext c = getContext();
+        ScriptContext ctxt = new SimpleScriptContext();
+        ctxt.setBindings(c.getBindings(ScriptContext.GLOBAL_SCOPE), ScriptContext.GLOBAL_SCOPE);
+        ctxt.setBindings(nn, ScriptContext.ENGINE_SCOPE);
+        ctxt.setReader(c.getReader());
+        ctxt.setWriter(c.getWriter());
+        ctxt.setErrorWriter(c.getErrorWriter());
+        return ctxt;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return engine.eval(script, context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return engine.eval(reader, context);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return engine.createBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return engine.getFactory();
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        return ((Compilable) engine).compile(script);
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        return ((Compilable) engine).compile(script);
+    }
+}
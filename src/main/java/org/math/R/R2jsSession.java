@@ -1,23 +1,31 @@
 package org.math.R;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Field;
 import java.nio.charset.Charset;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import jdk.nashorn.api.scripting.ScriptUtils;
@@ -44,15 +52,16 @@ import org.apache.commons.io.FileUtils;
  * matrices instead of arrays to use theses operations ## Matrices - definition
  * of matrices with: nrow, ncol, byrow - operations (transpose, +, -, *, ^, %*%,
  * %/%, %%) - column and row selection ([1,], [,1], [,], [c(1,2),]) - function
- * supported: determinant, solve, dim - TO SUPPORT: eigen ## DataFrames -
+ * supported: determinant, solve, dim (%*%, t, determinant and solve use java
+ * kernels, see R2jsLinearAlgebra) - TO SUPPORT: eigen ## DataFrames -
  * constructor: data.frame(first=a,second=b), data.frame('first'=a,'second'=b),
  * data.frame(a,b) - accessor: '$', "[['element']]" NOT SUPPORTED: column
  * extraction "[1:2,]" ## Lists - constructor: list(first=a,second=b),
  * list('first'=a,'second'=b), list(a,b) - accessor: '$', "[['element']]" NOT
  * SUPPORTED: column extraction "[1:2,]", accessor "[[1]]" ## R functions -
- * write.csv - runif - save and load variables - ls - rm variables - cbind (on
+ * write.csv - runif, rnorm, rpois, rchisq, rcauchy, set.seed - save and load variables - ls - rm variables - cbind (on
  * matrices only) - rbind (on matrices only) - file.exists - savels TO SUPPORT:
- * rnorm, capture.output NOT SUPPORTED: toPNG, asHTML, cbind (array and
+ * capture.output NOT SUPPORTED: toPNG, asHTML, cbind (array and
  * dataframe), rbind (array and dataframe), multiple imbricated functions
  *
  * -----------------------------------------------------------------------------------------------------------------------------------
@@ -67,10 +76,37 @@ public class R2jsSession extends Rsession implements RLog {
         "log", "max", "min", "round", "sin", "sqrt", "tan", "sign", "sum", "mean", "median", "std", "var"};
     private static final String[] MATH_CONST_JS = {"pi"};
 
+    // Renaming of R function calls to math.js functions
+    private static final Map<String, String> MATH_CALLS = new HashMap<>();
+    // Renaming of R function calls to R.js or rand.js functions
+    private static final Map<String, String> R_CALLS = new HashMap<>();
+
+    static {
+        for (String f : MATH_FUN_JS) {
+            MATH_CALLS.put(f, " math." + f);
+        }
+
+        R_CALLS.put("is__array", "Array.isArray");
+        for (String f : new String[]{"ncol", "nrow", "names", "length", "dim", "rep", "which", "whichMin", "whichMax",
+            "_print", "getwd", "setwd", "SysSleep", "SysGetEnv", "isFunction", "isNull", "isNA", "isTRUE", "isFALSE",
+            "apply", "rbind", "cbind", "all", "any", "strsplit", "unlist", "asNumeric", "asInteger", "asLogical", "asCharacter"}) {
+            R_CALLS.put(f, "__R." + f);
+        }
+        R_CALLS.put("reLen", "__R.repLen");
+        R_CALLS.put("Rpaste", "__R.paste");
+        R_CALLS.put("Rpaste0", "__R.paste0");
+        for (String f : new String[]{"runif", "rnorm", "rpois", "rcauchy", "rchisq"}) {
+            R_CALLS.put(f, "__rand." + f);
+        }
+        R_CALLS.put("set__seed", "__rand.setSeed");
+    }
+
     // JavaScript libraries used to evaluate expression
     private static final String MATH_JS_FILE = "/org/math/R/math.js";
     private static final String R_JS_FILE = "/org/math/R/R.js";
     private static final String RAND_JS_FILE = "/org/math/R/rand.js";
+    private static final String ENV_JS_FILE = "/org/math/R/env.js";
+    private static final String LINALG_JS_FILE = "/org/math/R/linalg.js";
 //    private static final String PLOT_JS_FILE = "/org/math/R/plotly.js";
 
     public ScriptEngine js;
@@ -87,8 +123,90 @@ public class R2jsSession extends Rsession implements RLog {
     // List of quotes expression
     private List<String> quotesList;
 
-    // Map containing js libraries already loaded (to not reload them at each instance of R2jsSession)
-    private final static Map<String, Object> jsLibraries = new HashMap<>();
+    /**
+     * Property giving the options of the js engine (space separated, like
+     * "--optimistic-types=false"). Sessions with same options share the same
+     * js engine.
+     */
+    public static final String ENGINE_OPTIONS_PROPERTY = "r2js.engine.options";
+    /**
+     * Property giving the directory of the persistent code cache of the js
+     * engine. Sessions with different directories do not share
+     * their js engine.
+     */
+    public static final String ENGINE_CODE_CACHE_PROPERTY = "r2js.engine.codecache";
+    /**
+     * Property enabling concurrent environments ("true"): each environment
+     * (see setGlobalEnv) is then evaluated in its own js global scope, and
+     * evaluations are synchronized on the environment instead of the session.
+     * So threads working in different environments run in parallel. The
+     * environment set by setGlobalEnv is then the one of the calling thread
+     * (other threads keep using the default environment of the session).
+     */
+    public static final String CONCURRENT_ENVIRONMENTS_PROPERTY = "r2js.concurrent.environments";
+    /**
+     * Property giving the directory of the persistent translation cache of
+     * source(): translations of sourced files are stored there, so next
+     * sessions (even in other jvms) sourcing the same files in the same scope
+     * do not translate them again (see R2jsSourceCache). With the persistent
+     * code cache of the js engine (ENGINE_CODE_CACHE_PROPERTY), nor the
+     * translation nor the compilation of these files are done again.
+     */
+    public static final String TRANSLATION_CACHE_PROPERTY = "r2js.translation.cache";
+
+    /**
+     * Environment with its own js global scope (when concurrent environments
+     * are enabled)
+     */
+    private static class Environment {
+
+        final String name;
+        final ScriptContext context;
+        // variables declared in this environment (see variablesSet)
+        final VariablesSet variables = new VariablesSet();
+
+        Environment(String name, ScriptContext context) {
+            this.name = name;
+            this.context = context;
+        }
+    }
+
+    // Environments by name, or null if concurrent environments are disabled
+    private Map<String, Environment> environments;
+    private Environment defaultEnvironment;
+    // Environment of the current thread, if not the default one (see setGlobalEnv)
+    private final ThreadLocal<Environment> threadEnvironment = new ThreadLocal<>();
+    // Lock of convertRtoJs (which uses quotesList), when evaluations are not synchronized on session
+    private final Object translator = new Object();
+    // js code of functions added by addJSFunction, to define them in new environments
+    private final List<String> functionsCode = new ArrayList<>();
+    // Random generator of the session (environments get their own stream, split from it)
+    private R2jsRandom random;
+
+    // Cache of R to js translations, keyed by R expression and session scope (see translate)
+    public final LRUCache<String, Translation> translationCache = new LRUCache<>(1000);
+
+    // Directory of the persistent translation cache of source(), or null (see TRANSLATION_CACHE_PROPERTY)
+    private File sourceCacheDir;
+
+    // Cache of compiled js scripts (if engine is Compilable), keyed by js expression,
+    // shared by sessions of the same js engine (see R2jsScriptEngine.getCompiledScriptCache)
+    public final LRUCache<String, CompiledScript> compiledScriptCache;
+
+    /**
+     * Result of convertRtoJs, with variables it declared in variablesSet (to
+     * replay this side effect when translation is taken from cache)
+     */
+    static class Translation {
+
+        final String js;
+        final String[] declaredVariables;
+
+        Translation(String js, String[] declaredVariables) {
+            this.js = js;
+            this.declaredVariables = declaredVariables;
+        }
+    }
 
     public static R2jsSession newInstance(final RLog console, Properties properties) {
         return new R2jsSession(console, properties);
@@ -115,13 +233,28 @@ public class R2jsSession extends Rsession implements RLog {
             envName = ENVIRONMENT_DEFAULT;
         }
 
-        variablesSet = new HashSet<>();
-        functionsSet = new HashSet<>();
+        variablesSet = new VariablesSet();
+        functionsSet = new VariablesSet();
 
         TRY_MODE_DEFAULT = false;
 
-        ScriptEngineManager manager = new ScriptEngineManager();
-        js = manager.getEngineByName("js");
+        js = R2jsScriptEngine.newInstance(engineCodeCache(properties), engineOptions(properties));
+        compiledScriptCache = ((R2jsScriptEngine) js).getCompiledScriptCache();
+        if (properties != null) {
+            properties = (Properties) properties.clone();
+            properties.remove(ENGINE_OPTIONS_PROPERTY);
+            properties.remove(ENGINE_CODE_CACHE_PROPERTY);
+            String sourceCache = (String) properties.remove(TRANSLATION_CACHE_PROPERTY);
+            if (sourceCache != null && sourceCache.trim().length() > 0) {
+                sourceCacheDir = new File(sourceCache.trim());
+            }
+            if (Boolean.parseBoolean((String) properties.remove(CONCURRENT_ENVIRONMENTS_PROPERTY))) {
+                environments = new HashMap<>();
+                defaultEnvironment = new Environment(envName, js.getContext());
+                environments.put(envName, defaultEnvironment);
+                variablesSet = new EnvironmentVariables();
+            }
+        }
 
         // Load external js libraries used by the js to evaluate expressions
         try {
@@ -157,6 +290,41 @@ public class R2jsSession extends Rsession implements RLog {
         setenv(properties);
     }
 
+    /**
+     * Get the js engine options from session properties.
+     *
+     * @param properties - session properties (may be null)
+     * @return the js engine options
+     */
+    static String[] engineOptions(Properties properties) {
+        List<String> options = new ArrayList<>();
+        if (properties != null) {
+            String o = properties.getProperty(ENGINE_OPTIONS_PROPERTY);
+            if (o != null && o.trim().length() > 0) {
+                options.addAll(Arrays.asList(o.trim().split("\\s+")));
+            }
+        }
+        return options.toArray(new String[options.size()]);
+    }
+
+    /**
+     * Get the persistent code cache directory of the js engine from session
+     * properties.
+     *
+     * @param properties - session properties (may be null)
+     * @return the code cache directory, or null
+     */
+    static File engineCodeCache(Properties properties) {
+        if (properties == null) {
+            return null;
+        }
+        String dir = properties.getProperty(ENGINE_CODE_CACHE_PROPERTY);
+        if (dir == null || dir.trim().length() == 0) {
+            return null;
+        }
+        return new File(dir.trim());
+    }
+
     @Override
     void setenv(Properties properties) {
         if (properties != null) {
@@ -186,15 +354,36 @@ public class R2jsSession extends Rsession implements RLog {
     }
 
     public void addReturnNullFunction(String name) throws ScriptException {
-        js.eval("function " + name + "(a,b,c,d,e,f) {return null;}");
+        evalFunctionCode("function " + name + "(a,b,c,d,e,f) {return null;}");
         functionsSet.add(name);
     }
 
     public void addJSFunction(String name, String js) throws ScriptException {
-        this.js.eval("function " + name + (js.startsWith("function") ? js.substring("function".length()) : js));
+        evalFunctionCode("function " + name + (js.startsWith("function") ? js.substring("function".length()) : js));
         functionsSet.add(name);
     }
 
+    /**
+     * Define a js function in all environments (and in the ones created
+     * later).
+     *
+     * @param code - js code of the function
+     */
+    private void evalFunctionCode(String code) throws ScriptException {
+        if (environments == null) {
+            js.eval(code);
+            return;
+        }
+        synchronized (environments) {
+            functionsCode.add(code);
+            for (Environment env : environments.values()) {
+                synchronized (env) {
+                    js.eval(code, env.context);
+                }
+            }
+        }
+    }
+
     /**
      * Load external js libraries to evaluate js expresions: - 'math.js' :
      * evaluate all mathematical expressions with numbers, arrays and matrices.
@@ -203,45 +392,38 @@ public class R2jsSession extends Rsession implements RLog {
      *
      * @throws ScriptException
      */
-    private synchronized void loadJSLibraries() throws ScriptException {
+    private void loadJSLibraries() throws ScriptException {
+        R2jsScriptEngine engine = (R2jsScriptEngine) js;
 
-        // Loading math.JS
-        if (!jsLibraries.containsKey("math")) {
-            InputStream mathInputStream = this.getClass().getResourceAsStream(MATH_JS_FILE);
-            js.eval(new InputStreamReader(mathInputStream, Charset.forName("UTF-8")));
-            jsLibraries.put("math", js.get("math"));
-        } else {
-            js.put("math", jsLibraries.get("math"));
-        }
+        // Loading math.JS (only once, shared by all sessions)
+        js.put("math", engine.getLibrary("math", MATH_JS_FILE));
 
         js.eval("var parser = math.parser();");
         // Change 'Matrix' mathjs config by 'Array'
         js.eval("math.config({matrix: 'Array'})");
         js.eval("var str = String.prototype;");
 
-        // Loading rand.js
-        if (!jsLibraries.containsKey("rand")) {
-            InputStream randInputStream = this.getClass().getResourceAsStream(RAND_JS_FILE);
-            js.eval(new InputStreamReader(randInputStream, Charset.forName("UTF-8")));
-            js.eval("__rand = rand()");
-            jsLibraries.put("__rand", js.get("rand"));
-        } else {
-            js.put("__rand", jsLibraries.get("rand"));
+        // Loading env.js (environments forking, shared by all sessions, as environments are created by math.js)
+        js.put("__env", engine.getLibrary("env", ENV_JS_FILE));
+        // Loading linalg.js (java kernels for matrix algebra, results created as math.js ones)
+        js.put("__linalg", engine.getLibrary("linalg", LINALG_JS_FILE));
+
+        // Loading rand.js, with its own java generator (a new stream for each environment)
+        engine.loadLibrary(RAND_JS_FILE);
+        js.put(JAVA_DATA, random == null ? (random = new R2jsRandom()) : random.split());
+        try {
+            js.eval("__rand = rand(" + JAVA_DATA + ")");
+        } finally {
+            js.getBindings(ScriptContext.ENGINE_SCOPE).remove(JAVA_DATA);
         }
 
         // Loading plotly.js
 //        InputStream RInputStream = this.getClass().getResourceAsStream(PLOT_JS_FILE);
 //        js.eval(new InputStreamReader(RInputStream));
 //        js.eval("Plotly = Plotly()");
-        // Loading R.js
-        if (!jsLibraries.containsKey("R")) {
-            InputStream RInputStream = this.getClass().getResourceAsStream(R_JS_FILE);
-            js.eval(new InputStreamReader(RInputStream, Charset.forName("UTF-8")));
-            js.eval("__R = R()");
-            jsLibraries.put("__R", js.get("R"));
-        } else {
-            js.put("__R", jsLibraries.get("R"));
-        }
+        // Loading R.js (holds session state, like working dir, so not shared)
+        engine.loadLibrary(R_JS_FILE);
+        js.eval("__R = R()");
     }
 
     static final String POINT_CHAR_JS_KEY = "__";
@@ -365,14 +547,14 @@ public class R2jsSession extends Rsession implements RLog {
         e = removeCommentedLines(e);
 
         // remove ; at end of lines. We will re-add it later
-        e = e.replaceAll(";+ *\\n", "\n");
+        e = R2jsUtils.replaceAll(e, ";+ *\\n", "\n");
 
         // non-regexp keys in R2js.propto replace
         if (R_TO_JS != null) {
             for (Object R_key : R_TO_JS.keySet()) {
                 String var = Pattern.quote(R_key.toString());
                 String regexp = AW + var + (R_key.toString().endsWith("(") ? ")" : Az);
-                Matcher m = Pattern.compile(regexp).matcher(e);
+                Matcher m = R2jsUtils.pattern(regexp).matcher(e);
                 while (m.find()) {
                     String val = R_TO_JS.getProperty(R_key.toString());
                     e = e.replace(m.group(), m.group().replace(R_key.toString(), val));
@@ -381,8 +563,8 @@ public class R2jsSession extends Rsession implements RLog {
         }
 
         //1E-8 -> 1*10^-8
-        //e = e.replaceAll("(\\d|\\d\\.)[eE]+([+-])*(\\d)", "$1*10^$2$3");
-        Matcher m = Pattern.compile("(\\d|\\d\\.)+[eE]+([+-])*(\\d*)").matcher(e);
+        //e = R2jsUtils.replaceAll(e, "(\\d|\\d\\.)[eE]+([+-])*(\\d)", "$1*10^$2$3");
+        Matcher m = R2jsUtils.pattern("(\\d|\\d\\.)+[eE]+([+-])*(\\d*)").matcher(e);
         while (m.find()) {
             try {
                 e = e.replace(m.group(), formatter.format(Double.parseDouble(m.group()))); // direct eval within java
@@ -401,47 +583,45 @@ public class R2jsSession extends Rsession implements RLog {
         checkExpressionValidity(e);
 
         //change variable names containing "." by "__", but avoid file names (ending with ')
-        e = e.replaceAll("([a-zA-Z]*)\\.([a-zA-Z]+)", "$1__$2");
+        e = R2jsUtils.replaceAll(e, "([a-zA-Z]*)\\.([a-zA-Z]+)", "$1__$2");
 
         // Remove all leading zeros before a number to prevent conversion from octal numeral system
-        e = e.replaceAll("(?<!\\.)\\b0+([1-9\\.])", "$1");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)\\b0+([1-9\\.])", "$1");
 
         // ceil() is an alias for ceiling() in R
-        e = e.replaceAll("(?<!\\.)(\\b)" + "ceiling" + "(?<!\\.)(\\b)", "ceil");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)" + "ceiling" + "(?<!\\.)(\\b)", "ceil");
 
         // Replace Math functions
-        for (String f : MATH_FUN_JS) {
-            e = e.replaceAll("(?<!\\.)(\\b)" + f + "\\(", "$1 math." + f + "(");
-        }
+        e = R2jsUtils.replaceCalls(e, MATH_CALLS);
 
         // Replace Math constants
         for (String c : MATH_CONST_JS) {
-            e = e.replaceAll("(?<!\\.)(\\b)" + c + "(?<!\\.)(\\b)", "$1 math." + c.toUpperCase() + "$2");
+            e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)" + c + "(?<!\\.)(\\b)", "$1 math." + c.toUpperCase() + "$2");
         }
 
-        // Replace t(x) by math.transpose(x)
-        e = e.replaceAll("(^|[^a-zA-Z\\d:])t\\(", "$1math.transpose(");
+        // Replace t(x) by __linalg.transpose(x) (java kernels, see linalg.js)
+        e = R2jsUtils.replaceAll(e, "(^|[^a-zA-Z\\d:])t\\(", "$1__linalg.transpose(");
 
-        // Replace determinant(x) by math.det(x)
-        e = e.replaceAll("(^|[^a-zA-Z\\d:])determinant\\(", "$1math.det(");
+        // Replace determinant(x) by __linalg.det(x)
+        e = R2jsUtils.replaceAll(e, "(^|[^a-zA-Z\\d:])determinant\\(", "$1__linalg.det(");
 
-        // Replace solve(A,B) by math.lusolve(A,B)
-        e = e.replaceAll("(^|[^a-zA-Z\\d:])solve\\(", "$1math.lusolve(");
+        // Replace solve(A,B) by __linalg.solve(A,B) (or inverse of A if B is missing)
+        e = R2jsUtils.replaceAll(e, "(^|[^a-zA-Z\\d:])solve\\(", "$1__linalg.solve(");
 
         // Replace dim(A) by r.dim(A)
-        e = e.replaceAll("(^|[^a-zA-Z\\d\\.:])dim\\(", "$1__R.dim(");
+        e = R2jsUtils.replaceAll(e, "(^|[^a-zA-Z\\d\\.:])dim\\(", "$1__R.dim(");
 
         // replace '->' by '='
-        e = e.replaceAll("<<-", "=");
-        e = e.replaceAll("<-", "=");
+        e = R2jsUtils.replaceAll(e, "<<-", "=");
+        e = R2jsUtils.replaceAll(e, "<-", "=");
 
         // replace "+-" by "-"
-        e = e.replaceAll("\\+ *-", "-");
+        e = R2jsUtils.replaceAll(e, "\\+ *-", "-");
         // replace "-123" by "0-123" (at begining of expr)
-        e = e.replaceAll("^ *-", "0-");
+        e = R2jsUtils.replaceAll(e, "^ *-", "0-");
 
         // replace 'f = function(x)' by 'function f(x)'
-        //e = e.replaceAll("([\\w\\-]+) *= *function[(]([\\w\\-[^)]]*)[)]", "function $1($2)");
+        //e = R2jsUtils.replaceAll(e, "([\\w\\-]+) *= *function[(]([\\w\\-[^)]]*)[)]", "function $1($2)");
         /*Matcher matcherFunction = Pattern.compile("([\\w\\-]+) *= *function[(]([\\w\\-[^)]]*)[)](.*)").matcher(e);
         if (matcherFunction.find()) {
             matcherFunction.reset();
@@ -462,29 +642,28 @@ public class R2jsSession extends Rsession implements RLog {
             matcherFunction.appendTail(sb);
             e = sb.toString();
         }   */
-        // replace the for expression
-        e = e.replaceAll("[(]([^=\\s]+)\\s*in\\s*([\\w\\-]+)\\s*:\\s*([[\\w\\-][.][)][(]]+)[)]\\s*",
-                "($1=$2; $1<=$3; $1++) ");
+        // replace the for expression on ranges (a:b, seq_len(n), seq_along(x)) by counting loops
+        e = replaceForRanges(e);
 
         // Add '{}' between the 'if' and the 'else'
-        //e = e.replaceAll("if( *[(][^)]*[)])(.[^}]*)else(.*)", "if$1{$2} else{$3}");
-        e = e.replaceAll("(?<!\\.)(\\b)if \\(", "if(");
+        //e = R2jsUtils.replaceAll(e, "if( *[(][^)]*[)])(.[^}]*)else(.*)", "if$1{$2} else{$3}");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)if \\(", "if(");
         e = addIfElseBrackets(e);
 
         // Add "{" and "}" if the function doesn't have them
-        e = e.replaceAll("function([.[^)]]*[)]) *([a-zA-Z0-9].*)$", "function$1 {$2}");
+        e = R2jsUtils.replaceAll(e, "function([.[^)]]*[)]) *([a-zA-Z0-9].*)$", "function$1 {$2}");
 
         // Add return statement in function if there is no return yet
         // FIXME: multiple imbricated functions are not supported for the moment
-        e = e.replaceAll("function([.[^)]]*[)]) *[{]\\s*(((?!return|function).)*)\\s*[}];*$", "function$1 {return $2}");
-        // e = e.replaceAll("function([.[^)]]*[)])
+        e = R2jsUtils.replaceAll(e, "function([.[^)]]*[)]) *[{]\\s*(((?!return|function).)*)\\s*[}];*$", "function$1 {return $2}");
+        // e = R2jsUtils.replaceAll(e, "function([.[^)]]*[)])
         // *[{](((?!return|function).)*)[}] *;", "function$1 {return $2};");
-        // e = e.replaceAll("function([.[^)]]*[)])
+        // e = R2jsUtils.replaceAll(e, "function([.[^)]]*[)])
         // *[{](((?!return|function).)*)[}] *;", "function$1 {return $2};");
         // *[{](((?!return|function).)*)[}] *\n", "function$1 {return $2}\n");
 
         // replace operator '**' by '^'
-        e = e.replaceAll("\\*\\*", "\\^");
+        e = R2jsUtils.replaceAll(e, "\\*\\*", "\\^");
 
         // Replace array indexing
         e = replaceIndexesSet(e);
@@ -492,43 +671,43 @@ public class R2jsSession extends Rsession implements RLog {
 
         // replace the array in R defined by c(1, 2, ...) by array in js [1, 2, ...]
         // FIXME: this will not work with c(a(2), b) because of parenthesis (maybe treat c like other functions?)
-        e = e.replaceAll("(?<!\\.)(\\b)c[(]([.[^):]]*)[)]", "$1[$2]");
-        e = e.replaceAll("(?<!\\.)(\\b)c[(]([.[^)]]*)[)]", "$1$2");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)c[(]([.[^):]]*)[)]", "$1[$2]");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)c[(]([.[^)]]*)[)]", "$1$2");
 
         // replace "for (x in array) {...}" by: "var arrayLength = array.length;
         // for(var i = 0; i < arrayLength; i++) { x = array[i]; ...}"
         // We can't used the "for (x of array)" expression in javascript because
         // it's not supported by Java8 and his javascript evaluator
-        e = e.replaceAll("for *[(]([\\w\\-]+) +in +([\\w\\-]+)[)] *[{]",
+        e = R2jsUtils.replaceAll(e, "for *[(]([\\w\\-]+) +in +([\\w\\-]+)[)] *[{]",
                 "var $2Length = __R.dim($2)[0]; for(var i = 0; i < $2Length; i++) {$1 = $2[i]; ");
 
         // Replace "TRUE" by "true" and "FALSE" by "false"
-        e = e.replaceAll("(?<!\\.)(\\b)TRUE(\\b)", "true");
-        e = e.replaceAll("(?<!\\.)(\\b)FALSE(\\b)", "false");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)TRUE(\\b)", "true");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)FALSE(\\b)", "false");
 
-        e = e.replaceAll("(?<!\\.)(\\b)NULL(\\b)", "null");
-        e = e.replaceAll("(?<!\\.)(\\b)NA(\\b)", "null");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)NULL(\\b)", "null");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)NA(\\b)", "null");
 
         // Replace '++' operator by a=a+1
-        e = e.replaceAll("([^ ]+)\\+\\+", "$1=$1+1");
+        e = R2jsUtils.replaceAll(e, "([^ ]+)\\+\\+", "$1=$1+1");
 
         // Replace '+=' operator by a=a+x
-        e = e.replaceAll("([^ ]+) *\\+\\=", "$1=$1+");
+        e = R2jsUtils.replaceAll(e, "([^ ]+) *\\+\\=", "$1=$1+");
 
         // FIXME this doesn't support += ...
         // Replace operators (+, -, *, /, ...)
-        e = e.replaceAll("\\=\\=", "ê");
-        e = e.replaceAll("\\<\\=", "ŝ");
-        e = e.replaceAll("\\>\\=", "ĝ");
-        e = e.replaceAll("\\|\\|", "ô");
-        e = e.replaceAll("\\&\\&", "â"); // to avoid replacing 'tolerance &' by two _and
+        e = R2jsUtils.replaceAll(e, "\\=\\=", "ê");
+        e = R2jsUtils.replaceAll(e, "\\<\\=", "ŝ");
+        e = R2jsUtils.replaceAll(e, "\\>\\=", "ĝ");
+        e = R2jsUtils.replaceAll(e, "\\|\\|", "ô");
+        e = R2jsUtils.replaceAll(e, "\\&\\&", "â"); // to avoid replacing 'tolerance &' by two _and
         e = replaceOperators(e);
 
         // Default parameter ("function(arg = defaultValue) {...}") is defined after the version ES6 of javascript
         // Java8 uses a previous version of javascript so we have to transform this expression in:
         // function(arg) { arg = typeof arg !== 'undefined' ? arg :
         // defaultValue; ...}
-        Matcher matcher = Pattern.compile("(.*function)[(](.*=.*)[)] *[{]").matcher(e);
+        Matcher matcher = R2jsUtils.pattern("(.*function)[(](.*=.*)[)] *[{]").matcher(e);
         if (matcher.find()) {
             matcher.reset();
             StringBuffer sb = new StringBuffer("");
@@ -554,7 +733,7 @@ public class R2jsSession extends Rsession implements RLog {
         e = createDataFrame(e);
 
         // replace list expression
-        e = e.replaceAll("(?<!\\.)(\\b)list\\(\\)", "{}");
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)list\\(\\)", "{}");
         e = createList(e);
 
         e = createSetEnv(e);
@@ -583,72 +762,30 @@ public class R2jsSession extends Rsession implements RLog {
         //e = createPredefinedFunction(e);
 
         // change for (x in X) {...} by for (x in R._in(X)) {...}, because in R in returns values for arrays (and keys for maps)
-        e = e.replaceAll(" in ([^\\{]+)\\{", " in __R._in($1){");
+        e = R2jsUtils.replaceAll(e, " in ([^\\{]+)\\{", " in __R._in($1){");
 
         // force regular 'if' to throw error when arg is null
-        e = e.replaceAll("if *\\(([^\\{\\n]+)\\)\\s*(\\{|(return))", "if (__R._if($1)) $2");
+        e = R2jsUtils.replaceAll(e, "if *\\(([^\\{\\n]+)\\)\\s*(\\{|(return))", "if (__R._if($1)) $2");
 
         // replace line return (\n) by ";" if there is a "=" or a "return" in the line
-        e = e.replaceAll("return(.*)\n", "return$1 ;\n");
-        //e = e.replaceAll("=(.*)\n", "=$1 ;\n");
-        e = e.replaceAll("(.[^\\n+-=/\\*]+)\n", "$1 ;\n");
+        e = R2jsUtils.replaceAll(e, "return(.*)\n", "return$1 ;\n");
+        //e = R2jsUtils.replaceAll(e, "=(.*)\n", "=$1 ;\n");
+        e = R2jsUtils.replaceAll(e, "(.[^\\n+-=/\\*]+)\n", "$1 ;\n");
 
         // Remove '+' at begining
-        e = e.replaceAll("^ *\\+", "");
+        e = R2jsUtils.replaceAll(e, "^ *\\+", "");
 
         // Remove unused ';' (after a bracket for instance)
-        e = e.replaceAll("\\{ *;", "\\{");
-        //e = e.replaceAll("\\} *;", "\\}"); No! otherwise, will replace 'a={}; \n b=2' by 'a={} \n b=2'
-        e = e.replaceAll("\\[ *;", "\\[");
-        e = e.replaceAll("\\( *;", "\\(");
-        e = e.replaceAll("; *;", ";");
-
-        e = e.replaceAll("(?<!\\.)(\\b)is__array\\(", "$1Array.isArray(");
-
-        e = e.replaceAll("(?<!\\.)(\\b)ncol\\(", "$1__R.ncol(");
-        e = e.replaceAll("(?<!\\.)(\\b)nrow\\(", "$1__R.nrow(");
-        e = e.replaceAll("(?<!\\.)(\\b)names\\(((\\w|\\.)+)\\)\\s*=\\s*", "$1 $2.names = "); // names(X) = "abc"
-        e = e.replaceAll("(?<!\\.)(\\b)names\\(", "$1__R.names(");
-        e = e.replaceAll("(?<!\\.)(\\b)length\\(", "$1__R.length(");
-        e = e.replaceAll("(?<!\\.)(\\b)dim\\(", "$1__R.dim(");
-        e = e.replaceAll("(?<!\\.)(\\b)reLen\\(", "$1__R.repLen(");
-        e = e.replaceAll("(?<!\\.)(\\b)rep\\(", "$1__R.rep(");
-        e = e.replaceAll("(?<!\\.)(\\b)which\\(", "$1__R.which(");
-        e = e.replaceAll("(?<!\\.)(\\b)whichMin\\(", "$1__R.whichMin(");
-        e = e.replaceAll("(?<!\\.)(\\b)whichMax\\(", "$1__R.whichMax(");
-        e = e.replaceAll("(?<!\\.)(\\b)_print\\(", "$1__R._print(");
-        e = e.replaceAll("(?<!\\.)(\\b)getwd\\(", "$1__R.getwd(");
-        e = e.replaceAll("(?<!\\.)(\\b)setwd\\(", "$1__R.setwd(");
-        e = e.replaceAll("(?<!\\.)(\\b)SysSleep\\(", "$1__R.SysSleep(");
-        e = e.replaceAll("(?<!\\.)(\\b)SysGetEnv\\(", "$1__R.SysGetEnv(");
-        e = e.replaceAll("(?<!\\.)(\\b)isFunction\\(", "$1__R.isFunction(");
-        e = e.replaceAll("(?<!\\.)(\\b)isNull\\(", "$1__R.isNull(");
-        e = e.replaceAll("(?<!\\.)(\\b)isNA\\(", "$1__R.isNA(");
-        e = e.replaceAll("(?<!\\.)(\\b)isTRUE\\(", "$1__R.isTRUE(");
-        e = e.replaceAll("(?<!\\.)(\\b)isFALSE\\(", "$1__R.isFALSE(");
-        e = e.replaceAll("(?<!\\.)(\\b)apply\\(", "$1__R.apply(");
-        e = e.replaceAll("(?<!\\.)(\\b)rbind\\(", "$1__R.rbind(");
-        e = e.replaceAll("(?<!\\.)(\\b)cbind\\(", "$1__R.cbind(");
-        e = e.replaceAll("(?<!\\.)(\\b)Rpaste\\(", "$1__R.paste(");
-        e = e.replaceAll("(?<!\\.)(\\b)all\\(", "$1__R.all(");
-        e = e.replaceAll("(?<!\\.)(\\b)any\\(", "$1__R.any(");
-        e = e.replaceAll("(?<!\\.)(\\b)strsplit\\(", "$1__R.strsplit(");
-        e = e.replaceAll("(?<!\\.)(\\b)unlist\\(", "$1__R.unlist(");
-        e = e.replaceAll("(?<!\\.)(\\b)Rpaste0\\(", "$1__R.paste0(");
-        e = e.replaceAll("(?<!\\.)(\\b)asNumeric\\(", "$1__R.asNumeric(");
-        e = e.replaceAll("(?<!\\.)(\\b)asInteger\\(", "$1__R.asInteger(");
-        e = e.replaceAll("(?<!\\.)(\\b)asLogical\\(", "$1__R.asLogical(");
-        e = e.replaceAll("(?<!\\.)(\\b)asCharacter\\(", "$1__R.asCharacter(");
-
-        e = e.replaceAll("__R\\.__R\\.", "__R.");
-
-        e = e.replaceAll("(?<!\\.)(\\b)runif\\(", "$1__rand.runif(");
-        e = e.replaceAll("(?<!\\.)(\\b)rnorm\\(", "$1__rand.rnorm(");
-        e = e.replaceAll("(?<!\\.)(\\b)rpois\\(", "$1__rand.rpois(");
-        e = e.replaceAll("(?<!\\.)(\\b)rcauchy\\(", "$1__rand.rcauchy(");
-        e = e.replaceAll("(?<!\\.)(\\b)rchisq\\(", "$1__rand.rchisq(");
-
-        e = e.replaceAll("__rand\\.__rand\\.", "__rand.");
+        e = R2jsUtils.replaceAll(e, "\\{ *;", "\\{");
+        //e = R2jsUtils.replaceAll(e, "\\} *;", "\\}"); No! otherwise, will replace 'a={}; \n b=2' by 'a={} \n b=2'
+        e = R2jsUtils.replaceAll(e, "\\[ *;", "\\[");
+        e = R2jsUtils.replaceAll(e, "\\( *;", "\\(");
+        e = R2jsUtils.replaceAll(e, "; *;", ";");
+
+        e = R2jsUtils.replaceAll(e, "(?<!\\.)(\\b)names\\(((\\w|\\.)+)\\)\\s*=\\s*", "$1 $2.names = "); // names(X) = "abc"
+        e = R2jsUtils.replaceCalls(e, R_CALLS);
+        e = R2jsUtils.replaceAll(e, "__R\\.__R\\.", "__R.");
+        e = R2jsUtils.replaceAll(e, "__rand\\.__rand\\.", "__rand.");
 
         // Replace function() {return if(condition){a} else {b}} by function() {if(condition{return a} else {return b}}
         e = replaceReturnIf(e);
@@ -667,16 +804,27 @@ public class R2jsSession extends Rsession implements RLog {
         // Replace variables by variableStorageObject.variable
         e = replaceVariables(e, variablesSet, THIS_ENVIRONMENT + ".");
 
+        // Inline tests and increments of counting loops (see replaceForRanges)
+        e = R2jsUtils.replaceAll(e, FOR_BY, "($1 <= $2 ? 1 : -1)");
+        e = R2jsUtils.replaceAll(e, FOR_WHILE, "($1 - $2) * $3 <= 0");
+        e = R2jsUtils.replaceAll(e, FOR_NEXT, "$1 + $2");
+
+        // Use js operators instead of __R/math.js functions on scalars
+        e = replaceScalarOperators(e);
+
+        // Append rows in place in "x = rbind(x, ...)" statements (see rbindTo in env.js)
+        e = R2jsUtils.replaceAll(e, GROW_ROWS, "$1$2__R.rbindTo(" + THIS_ENVIRONMENT + ", '$3', ");
+
         // Finally replace "quotes variables" by their expressions associated
         e = replaceNameByQuotes(quotesList, e, false);
 
         // Replace '$' accessor of data.frame by a '.'
-        e = e.replaceAll("\\$" + THIS_ENVIRONMENT + "\\.", "\\$"); // Remove the JS variable if there is a '$' before
-        e = e.replaceAll("\\$([a-zA-Z._])", ".$1"); //FIXME
+        e = R2jsUtils.replaceAll(e, "\\$" + THIS_ENVIRONMENT + "\\.", "\\$"); // Remove the JS variable if there is a '$' before
+        e = R2jsUtils.replaceAll(e, "\\$([a-zA-Z._])", ".$1"); //FIXME
 
         // R Comments
-        e = e.replaceAll("#", "//");
-        //e = e.replaceAll("^(.*)#(.*)$", "$1/*$2*/");
+        e = R2jsUtils.replaceAll(e, "#", "//");
+        //e = R2jsUtils.replaceAll(e, "^(.*)#(.*)$", "$1/*$2*/");
 
         if (debug_js) {
             String[] lines_R = R.split("\n");
@@ -695,8 +843,82 @@ public class R2jsSession extends Rsession implements RLog {
         return e;
     }
 
+    /**
+     * Convert an R expression in a Js expression, using translationCache if
+     * this expression was already translated within the same scope (same
+     * environment, variables and functions).
+     *
+     * @param e - the R expression
+     * @return the js script expression
+     */
+    private String translate(String e) throws RException {
+        synchronized (translator) {
+            return translateUnsynchronized(e);
+        }
+    }
+
+    private String translateUnsynchronized(String e) throws RException {
+        // load() reads variables from file while translating, so it cannot be cached
+        if (translationCache.getMaxSize() <= 0 || e.contains("load(")) {
+            return convertRtoJs(e);
+        }
+
+        String key = scopeKey() + "|" + e;
+        Translation t = translationCache.get(key);
+        if (t != null) {
+            variablesSet.addAll(Arrays.asList(t.declaredVariables));
+            return t.js;
+        }
+
+        t = convertRtoJsRecording(e);
+        translationCache.put(key, t);
+        return t.js;
+    }
+
+    // Scope of the translation: environment, variables and functions
+    private String scopeKey() {
+        return currentEnvName() + "|" + namesKey(variablesSet) + "|" + namesKey(functionsSet);
+    }
+
+    // Names of the scope of the translation (same in any jvm, unlike scopeKey)
+    private String scopeNames() {
+        return currentEnvName() + "\n" + new TreeSet<>(variablesSet) + "\n" + new TreeSet<>(functionsSet);
+    }
+
+    // Identifier of the names of a set (its version, unless it was replaced by another set)
+    private static String namesKey(Set<String> names) {
+        if (names instanceof VariablesSet) {
+            return "#" + ((VariablesSet) names).version();
+        }
+        return new TreeSet<>(names).toString();
+    }
+
+    // convertRtoJs, recording the variables declared in variablesSet
+    private Translation convertRtoJsRecording(String e) throws RException {
+        List<String> declared = new ArrayList<>();
+        String js;
+        if (variablesSet instanceof VariablesSet) {
+            VariablesSet variables = (VariablesSet) variablesSet;
+            variables.record(declared);
+            try {
+                js = convertRtoJs(e);
+            } finally {
+                variables.record(null);
+            }
+        } else {
+            Set<String> before = new HashSet<>(variablesSet);
+            js = convertRtoJs(e);
+            for (String v : variablesSet) {
+                if (!before.contains(v)) {
+                    declared.add(v);
+                }
+            }
+        }
+        return new Translation(js, declared.toArray(new String[declared.size()]));
+    }
+
     private String convertFunction(String expr) throws ScriptException {
-        Pattern indexPattern = Pattern.compile("(^|[^\\.\\w])((?!function|if|for|while|switch|return)\\w+)[(]");
+        Pattern indexPattern = R2jsUtils.pattern("(^|[^\\.\\w])((?!function|if|for|while|switch|return)\\w+)[(]");
         Matcher indexMatcher = indexPattern.matcher(expr);
 
         if (indexMatcher.find()) {
@@ -706,7 +928,7 @@ public class R2jsSession extends Rsession implements RLog {
                 // Ignore if the functions is already defined
                 if (!this.variablesSet.contains(fctName)) {
                     // If the function is not defined yet in js environment
-                    if (!this.asLogical(this.js.eval("typeof " + fctName + " !== 'undefined'"))) {
+                    if (!this.asLogical(evalWhileTranslating("typeof " + fctName + " !== 'undefined'"))) {
                         this.variablesSet.add(fctName);
                     }
                 }
@@ -718,6 +940,16 @@ public class R2jsSession extends Rsession implements RLog {
         return expr;
     }
 
+    // js.eval(expr) needed by a translation, which is not done by the threads
+    // translating ahead sourced statements (see sourceStatements), as the
+    // previous statements are still evaluated in the same js global
+    private Object evalWhileTranslating(String expr) throws ScriptException {
+        if (TRANSLATING_AHEAD.get() != null) {
+            throw new TranslationDeferred();
+        }
+        return js.eval(expr);
+    }
+
     int maxLength(String... s) {
         int ml = 0;
         for (String l : s) {
@@ -759,6 +991,9 @@ public class R2jsSession extends Rsession implements RLog {
         return sb.toString();
     }
 
+    // Call of a function, with its arguments (until first ')')
+    private static final Pattern CALL_PATTERN = Pattern.compile("\\b(\\w+)\\(([^\\)]*)\\)");
+
     /**
      * Add prefix before arguments names of the function to not replace them
      * after by "global variables"
@@ -792,7 +1027,7 @@ public class R2jsSession extends Rsession implements RLog {
 
             // Prefix function's arguments by "__"
             String replacedFunction = replaceVariables(function, arguments, prefix);
-            replacedFunction = replacedFunction.replaceAll("(\\b)function(\\b)", "$1_function$2");
+            replacedFunction = R2jsUtils.replaceAll(replacedFunction, "(\\b)function(\\b)", "$1_function$2");
 
             // expression
             StringBuilder sb = new StringBuilder();
@@ -804,36 +1039,42 @@ public class R2jsSession extends Rsession implements RLog {
             // Search the next "function" in the expression
             rFunctionArgumentsDTO = getFunctionArguments(result, "function");
         }
-        result = result.replaceAll("(\\b)_function(\\b)", "$1function$2");
+        result = R2jsUtils.replaceAll(result, "(\\b)_function(\\b)", "$1function$2");
 
         // Now replace also in calls to functions: f(a=2) -> f(__a=2)
-        for (String f : variablesSet) {
-            Pattern fPattern = Pattern.compile("\\b(" + f + ")\\(([^\\)]*)\\)");
-            Matcher fMatcher = fPattern.matcher(result);
-
-            if (fMatcher.find()) {
-                fMatcher.reset();
-                StringBuffer result_buf = new StringBuffer();
-                while (fMatcher.find()) {
-                    String args = " " + fMatcher.group(2) + " ";
-                    //System.err.println("args: "+args);
-                    String[] argsArray = splitString(args, ",");
-                    StringBuffer args_buf = new StringBuffer();
-                    for (int i = 0; i < argsArray.length; i++) {
-                        //System.err.println(" - "+argsArray[i]);
-                        if (argsArray[i].contains("=")) {
-                            String[] kv_arg = argsArray[i].split("=");
-                            argsArray[i] = "__" + kv_arg[0].trim() + " = " + kv_arg[1];
-                        }
-                        args_buf.append(argsArray[i] + (i == (argsArray.length - 1) ? "" : ","));
-                    }
-                    fMatcher.appendReplacement(result_buf, (f + "(" + args_buf.toString() + ")").replace("$", "\\$"));
+        // (calls are searched in one scan, and f is looked up in variablesSet)
+        Matcher fMatcher = CALL_PATTERN.matcher(result);
+        StringBuilder result_buf = null;
+        int copied = 0;
+        int from = 0;
+        while (fMatcher.find(from)) {
+            String f = fMatcher.group(1);
+            if (!variablesSet.contains(f)) {
+                // look for calls in arguments
+                from = fMatcher.end(1);
+                continue;
+            }
+            String args = " " + fMatcher.group(2) + " ";
+            //System.err.println("args: "+args);
+            String[] argsArray = splitString(args, ",");
+            StringBuilder args_buf = new StringBuilder();
+            for (int i = 0; i < argsArray.length; i++) {
+                //System.err.println(" - "+argsArray[i]);
+                if (argsArray[i].contains("=")) {
+                    String[] kv_arg = argsArray[i].split("=");
+                    argsArray[i] = "__" + kv_arg[0].trim() + " = " + kv_arg[1];
                 }
-
-                fMatcher.appendTail(result_buf);
-
-                result = result_buf.toString();
+                args_buf.append(argsArray[i] + (i == (argsArray.length - 1) ? "" : ","));
             }
+            if (result_buf == null) {
+                result_buf = new StringBuilder(result.length() + 64);
+            }
+            result_buf.append(result, copied, fMatcher.start()).append(f).append('(').append(args_buf).append(')');
+            copied = fMatcher.end();
+            from = copied;
+        }
+        if (result_buf != null) {
+            result = result_buf.append(result, copied, result.length()).toString();
         }
 
         return result;
@@ -850,10 +1091,16 @@ public class R2jsSession extends Rsession implements RLog {
      * @param variables - the variables to replace
      * @return the expression with replaced variables
      */
-    private String replaceVariables(String expr, Iterable<String> variables, String prefix) {
-        String result = expr;
+    private String replaceVariables(String expr, Collection<String> variables, String prefix) {
+        // Variables which are words are all replaced in one scan of the expression
+        Set<String> words = variables instanceof Set ? (Set<String>) variables : new HashSet<>(variables);
+        String result = R2jsUtils.prefixWords(expr, words, prefix);
+        if (!words.isEmpty() && !(words.size() == 1 && words.contains(""))) {
+            result = R2jsUtils.replaceAll(result, prefix + prefix, prefix);
+        }
+        // other ones (like "x=1" for a function argument with default value) are replaced as regexps
         for (String variable : variables) {
-            if (variable.length() > 0) {
+            if (variable.length() > 0 && !R2jsUtils.isWord(variable)) {
                 //result = result.replaceAll("(\\b)^((?!" + JS_VARIABLE_STORAGE_OBJECT + "\\.).)*(\\b)(" + variable + ")(\\b)", JS_VARIABLE_STORAGE_OBJECT + "." + variable);
                 result = result.replaceAll("\\b(?<![\\$\\.[__]])" + variable + "\\b", prefix + variable);
                 result = result.replaceAll(prefix + prefix, prefix);
@@ -967,13 +1214,13 @@ public class R2jsSession extends Rsession implements RLog {
 
             // If there is a regex pattern argument
             if (pattern != null) {
-                unifRandomSb.append("__R.removeMatching(Object.keys(");
+                unifRandomSb.append("__R.removeMatching(__env.keys(");
                 unifRandomSb.append(THIS_ENVIRONMENT);
                 unifRandomSb.append("), new RegExp(");
                 unifRandomSb.append(pattern);
                 unifRandomSb.append("))");
             } else {
-                unifRandomSb.append("Object.keys(");
+                unifRandomSb.append("__env.keys(");
                 unifRandomSb.append(THIS_ENVIRONMENT);
                 unifRandomSb.append(")");
             }
@@ -1078,7 +1325,7 @@ public class R2jsSession extends Rsession implements RLog {
      * @return the expression with replaced indexes
      */
     public static String replaceIndexes(String expr) {
-        Matcher intricated = Pattern.compile(".*(\\[+)(.[^\\]]+)(\\[).*").matcher(expr);
+        Matcher intricated = R2jsUtils.pattern(".*(\\[+)(.[^\\]]+)(\\[).*").matcher(expr);
         if (intricated.find()) {
             intricated.reset();
             List<String> found = new LinkedList<>();
@@ -1088,7 +1335,7 @@ public class R2jsSession extends Rsession implements RLog {
             throw new UnsupportedOperationException("Intricated indexes 'abc[def[i]]' not supported at:" + String.join("\n", found));
         }
 
-        Pattern indexPattern = Pattern.compile(index_pattern);
+        Pattern indexPattern = R2jsUtils.pattern(index_pattern);
         Matcher indexMatcher = indexPattern.matcher(expr);
 
         if (indexMatcher.find()) {
@@ -1124,7 +1371,7 @@ public class R2jsSession extends Rsession implements RLog {
     }
 
     public static String replaceIndexesSet(String expr) {
-        Matcher intricated = Pattern.compile(".*(\\[+)(.[^\\]]+)(\\[).*").matcher(expr);
+        Matcher intricated = R2jsUtils.pattern(".*(\\[+)(.[^\\]]+)(\\[).*").matcher(expr);
         if (intricated.find()) {
             intricated.reset();
             List<String> found = new LinkedList<>();
@@ -1134,7 +1381,7 @@ public class R2jsSession extends Rsession implements RLog {
             throw new UnsupportedOperationException("Intricated indexes 'abc[def[i]]' not supported at:" + String.join("\n", found));
         }
 
-        Pattern indexPattern = Pattern.compile(index_pattern + "\\s*[\\=]{1}(.*)");
+        Pattern indexPattern = R2jsUtils.pattern(index_pattern + "\\s*[\\=]{1}(.*)");
         Matcher indexMatcher = indexPattern.matcher(expr);
 
         if (indexMatcher.find()) {
@@ -1732,9 +1979,9 @@ public class R2jsSession extends Rsession implements RLog {
 
     /**
      * This function replaces the R function save by JS equivalent It writes in
-     * file the variable with its value sperated by ':' in the file (example:
-     * "variable:value") WARNING the function works only if the variable to save
-     * is between quotes
+     * file the variables in a binary snapshot (see R2jsSnapshot), or in json if
+     * ascii=TRUE. WARNING the function works only if the variable to save is
+     * between quotes
      *
      * @param expr - the expression containing the function to replace
      * @return the expression with replaced function
@@ -1755,18 +2002,32 @@ public class R2jsSession extends Rsession implements RLog {
             String fileString = argumentsMap.get("file");
 
             String listStringUnquotted = listString.replace("\'", "");
+            String asciiString = argumentsMap.get("ascii");
+            boolean ascii = asciiString != null && asciiString.trim().matches("TRUE|T|true");
 
             // Build the mathjs expression to create an array/matrix
             StringBuilder saveSb = new StringBuilder();
 
-            saveSb.append("__R.write(");
-            saveSb.append(fileString);
-            saveSb.append(", ");
-            saveSb.append("__R.createJsonString(");
-            saveSb.append(listStringUnquotted);
-            saveSb.append(", ");
-            saveSb.append(THIS_ENVIRONMENT);
-            saveSb.append("))");
+            if (ascii) {
+                // json file, as saved by previous versions
+                saveSb.append("__R.write(");
+                saveSb.append(fileString);
+                saveSb.append(", ");
+                saveSb.append("__R.createJsonString(");
+                saveSb.append(listStringUnquotted);
+                saveSb.append(", ");
+                saveSb.append(THIS_ENVIRONMENT);
+                saveSb.append("))");
+            } else {
+                // binary snapshot (see R2jsSnapshot)
+                saveSb.append("__R.saveSnapshot(");
+                saveSb.append(fileString);
+                saveSb.append(", ");
+                saveSb.append(listStringUnquotted);
+                saveSb.append(", ");
+                saveSb.append(THIS_ENVIRONMENT);
+                saveSb.append(")");
+            }
 
             // Replace the R matrix expression by the current matrix js
             // expression
@@ -1886,7 +2147,7 @@ public class R2jsSession extends Rsession implements RLog {
     private static String replaceReturnIf(String expr) {
 
         String result = expr;
-        result = result.replaceAll("\\breturn +if *\\(", "returnif(");
+        result = R2jsUtils.replaceAll(result, "\\breturn +if *\\(", "returnif(");
         RFunctionArgumentsDTO rFunctionArgumentsDTO = getFunctionArguments(result, "returnif", true);
 
         while (rFunctionArgumentsDTO != null) {
@@ -1926,7 +2187,7 @@ public class R2jsSession extends Rsession implements RLog {
             result = sb.toString();
 
             // Search the next "return if" in the expression
-            result = result.replaceAll("\\breturn +if *\\(", "returnif(");
+            result = R2jsUtils.replaceAll(result, "\\breturn +if *\\(", "returnif(");
             rFunctionArgumentsDTO = getFunctionArguments(result, "returnif");
         }
 
@@ -1974,6 +2235,240 @@ public class R2jsSession extends Rsession implements RLog {
         return result;
     }
 
+    private static final Pattern FOR_HEADER = Pattern.compile("(?<![\\w.])for\\s*\\(\\s*([\\w.]+)\\s+in\\s+");
+    private static final String FOR_BY = "__R\\._by\\(\\s*([\\w.]+)\\s*,\\s*([\\w.]+)\\s*\\)";
+    private static final String FOR_WHILE = "__R\\._while\\(\\s*([\\w.]+)\\s*,\\s*([\\w.]+)\\s*,\\s*([\\w.]+)\\s*\\)";
+    private static final String FOR_NEXT = "__R\\._next\\(\\s*([\\w.]+)\\s*,\\s*([\\w.]+)\\s*\\)";
+
+    /**
+     * Replace loops on ranges "for (i in a:b)", "for (i in seq_len(n))" and
+     * "for (i in seq_along(x))" by counting loops, which do not build the
+     * array of indices (bounds are evaluated once, as in R). The loop test and
+     * increment are written as __R._while and __R._next calls, so that their
+     * arguments are translated as other variables, and then inlined at the
+     * end of the translation. Other loops are left unchanged.
+     *
+     * @param expr - the expression containing the loops to replace
+     * @return the expression with replaced loops
+     */
+    static String replaceForRanges(String expr) {
+        Matcher m = FOR_HEADER.matcher(expr);
+        StringBuilder sb = new StringBuilder();
+        int last = 0;
+        while (m.find(last)) {
+            int start = m.end();
+            int end = closingParenthesis(expr, m.start() + expr.substring(m.start()).indexOf('('));
+            if (end < 0) {
+                break;
+            }
+            String var = m.group(1);
+            String range = expr.substring(start, end).trim();
+            String from = null;
+            String to = null;
+            String by = null;
+            String[] args;
+            if ((args = callArgument(range, "seq_len")) != null) {
+                from = "1";
+                to = args[0];
+                by = "1";
+            } else if ((args = callArgument(range, "seq_along")) != null) {
+                from = "1";
+                to = "length(" + args[0] + ")";
+                by = "1";
+            } else {
+                int colon = topLevelIndexOf(range, ':');
+                if (colon > 0 && topLevelIndexOf(range.substring(colon + 1), ':') < 0) {
+                    from = range.substring(0, colon).trim();
+                    to = range.substring(colon + 1).trim();
+                }
+            }
+            sb.append(expr, last, m.start());
+            if (from == null || to.isEmpty()) {
+                // not a range: generic loop
+                sb.append(expr, m.start(), end + 1);
+            } else {
+                String v = "__" + var.replaceAll("\\W", "_");
+                sb.append("for (").append(var).append(" = ").append(from)
+                        .append(", ").append(v).append("_to = ").append(to)
+                        .append(", ").append(v).append("_by = ").append(by == null ? "__R._by(" + var + ", " + v + "_to)" : by)
+                        .append("; __R._while(").append(var).append(", ").append(v).append("_to, ").append(v).append("_by)")
+                        .append("; ").append(var).append(" = __R._next(").append(var).append(", ").append(v).append("_by))");
+            }
+            last = end + 1;
+        }
+        sb.append(expr.substring(last));
+        return sb.toString();
+    }
+
+    // arguments of expr if it is only a call to fct, else null
+    private static String[] callArgument(String expr, String fct) {
+        if (!expr.matches(fct + "\\s*\\(.*\\)")) {
+            return null;
+        }
+        int open = expr.indexOf('(');
+        if (closingParenthesis(expr, open) != expr.length() - 1) {
+            return null;
+        }
+        return new String[]{expr.substring(open + 1, expr.length() - 1).trim()};
+    }
+
+    // index of the parenthesis closing the one at index open (ignoring quoted ones), or -1
+    private static int closingParenthesis(String expr, int open) {
+        int depth = 0;
+        char quote = 0;
+        for (int i = open; i < expr.length(); i++) {
+            char c = expr.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth--;
+                if (depth == 0) {
+                    return c == ')' ? i : -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // index of c in expr, outside of parenthesis, brackets and quotes, or -1
+    private static int topLevelIndexOf(String expr, char c) {
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < expr.length(); i++) {
+            char ch = expr.charAt(i);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '\'' || ch == '"') {
+                quote = ch;
+            } else if (ch == '(' || ch == '[' || ch == '{') {
+                depth++;
+            } else if (ch == ')' || ch == ']' || ch == '}') {
+                depth--;
+            } else if (ch == c && depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // statement "__this__.x = __R.rbind(__this__.x, ..." (not a returned or assigned value)
+    private static final String GROW_ROWS = "(^|[;{}\\n)]|\\belse)(\\s*)" + THIS_ENVIRONMENT + "\\.(\\w+)\\s*=\\s*__R\\.rbind\\(\\s*" + THIS_ENVIRONMENT + "\\.\\3\\s*,\\s*";
+    private static final Pattern FOR_COUNTER = Pattern.compile("(?<![\\w.])([\\w.]+) = \\1 \\+ __\\w+_by\\)");
+    private static final String SCALAR_NUMBER = "SCALAR_NUMBER_";
+    private static final String SCALAR_LOGICAL = "SCALAR_LOGICAL_";
+    // numeric literal, or length(x)
+    private static final String NUMBER_TERM = "-?\\d+(?:\\.\\d*)?(?:[eE][-+]?\\d+)?|math\\.squeeze\\(math\\.subset\\(__R\\.dim\\([\\w.]+\\), math\\.index\\(0\\)\\)\\)|" + SCALAR_NUMBER + "\\d+_";
+    private static final String LOGICAL_TERM = "true|false|" + SCALAR_LOGICAL + "\\d+_";
+    private static final Map<String, String> NUMBER_OPERATORS = new HashMap<>();
+    private static final Map<String, String> COMPARISON_OPERATORS = new HashMap<>();
+    private static final Map<String, String> LOGICAL_OPERATORS = new HashMap<>();
+
+    static {
+        NUMBER_OPERATORS.put("math.add", "+");
+        NUMBER_OPERATORS.put("math.subtract", "-");
+        NUMBER_OPERATORS.put("math.dotMultiply", "*");
+        COMPARISON_OPERATORS.put("__R._lt", "<");
+        COMPARISON_OPERATORS.put("__R._gt", ">");
+        COMPARISON_OPERATORS.put("__R._let", "<=");
+        COMPARISON_OPERATORS.put("__R._get", ">=");
+        COMPARISON_OPERATORS.put("__R._eq", "==");
+        LOGICAL_OPERATORS.put("__R._and", "&&");
+        LOGICAL_OPERATORS.put("__R._andand", "&&");
+        LOGICAL_OPERATORS.put("__R._or", "||");
+        LOGICAL_OPERATORS.put("__R._oror", "||");
+    }
+
+    /**
+     * Replace calls of operators (math.add, __R._lt, __R._and, __R._if, ...)
+     * by js operators when arguments are known to be scalars: numbers are
+     * numeric literals, length(x) and counters of loops on ranges (see
+     * replaceForRanges) not assigned elsewhere in the expression, logicals
+     * are true, false and results of comparisons of numbers. Other calls are
+     * left unchanged, as they may work on vectors, NA or null values.
+     *
+     * @param expr - the translated expression
+     * @return the expression with js operators on scalars
+     */
+    static String replaceScalarOperators(String expr) {
+        String number = "(?:" + NUMBER_TERM + scalarCounters(expr) + ")";
+        String logical = "(?:" + LOGICAL_TERM + ")";
+        List<String> scalars = new ArrayList<>();
+        String prev;
+        do {
+            prev = expr;
+            expr = replaceScalarCalls(expr, NUMBER_OPERATORS, number, SCALAR_NUMBER, scalars);
+            expr = replaceScalarCalls(expr, COMPARISON_OPERATORS, number, SCALAR_LOGICAL, scalars);
+            expr = replaceScalarCalls(expr, LOGICAL_OPERATORS, logical, SCALAR_LOGICAL, scalars);
+        } while (!expr.equals(prev));
+        if (scalars.isEmpty()) {
+            return expr;
+        }
+        expr = R2jsUtils.replaceAll(expr, "__R\\._if\\(\\s*(" + SCALAR_LOGICAL + "\\d+_)\\s*\\)", "$1");
+        // back to expressions, last ones containing previous ones
+        for (int i = scalars.size() - 1; i >= 0; i--) {
+            expr = expr.replace(SCALAR_NUMBER + i + "_", scalars.get(i)).replace(SCALAR_LOGICAL + i + "_", scalars.get(i));
+        }
+        return expr;
+    }
+
+    // "|counter1|counter2..." for counters of loops which are always numbers
+    private static String scalarCounters(String expr) {
+        StringBuilder counters = new StringBuilder();
+        Matcher m = FOR_COUNTER.matcher(expr);
+        Set<String> done = new HashSet<>();
+        while (m.find()) {
+            String var = m.group(1);
+            if (!done.add(var)) {
+                continue;
+            }
+            String v = Pattern.quote(var);
+            int headers = 0;
+            Matcher h = Pattern.compile("for \\(" + v + " = ").matcher(expr);
+            int first = -1;
+            while (h.find()) {
+                first = first < 0 ? h.start() + 5 : first;
+                headers++;
+            }
+            int assignments = 0;
+            Matcher a = Pattern.compile("(?<![\\w.])" + v + "\\s*(=(?!=)|\\[)").matcher(expr);
+            while (a.find()) {
+                assignments++;
+            }
+            Matcher u = Pattern.compile("(?<![\\w.])" + v + "(?![\\w.])").matcher(expr);
+            // only assigned by loops, and not used before the first one
+            if (headers > 0 && assignments == 2 * headers && u.find() && u.start() == first) {
+                counters.append('|').append(v);
+            }
+        }
+        return counters.toString();
+    }
+
+    // replace calls fct(x, y) with scalar x and y by placeholders of (x op y)
+    private static String replaceScalarCalls(String expr, Map<String, String> operators, String term, String placeholder, List<String> scalars) {
+        for (Map.Entry<String, String> op : operators.entrySet()) {
+            if (!expr.contains(op.getKey() + "(")) {
+                continue;
+            }
+            Matcher m = Pattern.compile("(?<![\\w.])" + Pattern.quote(op.getKey()) + "\\(\\s*(" + term + ")\\s*,\\s*(" + term + ")\\s*\\)").matcher(expr);
+            StringBuffer sb = new StringBuffer();
+            while (m.find()) {
+                scalars.add("(" + m.group(1) + " " + op.getValue() + " " + m.group(2) + ")");
+                m.appendReplacement(sb, placeholder + (scalars.size() - 1) + "_");
+            }
+            m.appendTail(sb);
+            expr = sb.toString();
+        }
+        return expr;
+    }
+
     /**
      * This function replaces the R function exists in JavaScript WARNING:
      * arguments('where', 'envir', 'frame', 'mode' and 'inherits') are not
@@ -1999,8 +2494,9 @@ public class R2jsSession extends Rsession implements RLog {
             // Build the mathjs expression
             StringBuilder fileExistSb = new StringBuilder();
 
+            fileExistSb.append("__env.exists(");
             fileExistSb.append(THIS_ENVIRONMENT);
-            fileExistSb.append(".hasOwnProperty(");
+            fileExistSb.append(", ");
             fileExistSb.append(variable);
             fileExistSb.append(")");
 
@@ -2174,7 +2670,7 @@ public class R2jsSession extends Rsession implements RLog {
 
         Map<String, String> argumentNamesAndValues = new LinkedHashMap<>(); //because we need to keep order of arguments, by default
 
-        Pattern pattern = Pattern.compile("(?<!\\.)(\\b)" + fctName + "\\(");
+        Pattern pattern = R2jsUtils.pattern("(?<!\\.)(\\b)" + fctName + "\\(");
         Matcher matcher = pattern.matcher(expr);
 
         // If an occurrence has been found
@@ -2248,15 +2744,15 @@ public class R2jsSession extends Rsession implements RLog {
      * @return expr without + operators
      */
     private static String removePlusOperator(String expr) {
-        expr = expr.replaceAll("(return|if|else|\\(|\\{|\\|[\\|]|\\}|=|,|<|>) *\\+", "$1");
-        expr = expr.replaceAll("\\+\\s*\\+", "+");
-        expr = expr.replaceAll("\\-\\s*\\+", "-");
-        expr = expr.replaceAll("\\*\\s*\\+", "*");
-        expr = expr.replaceAll("\\/\\s*\\+", "/");
-        expr = expr.replaceAll("\\:\\s*\\+", ":");
-        expr = expr.replaceAll("\\;\\s*\\+", ";");
-        expr = expr.replaceAll("\\^\\s*\\+", "^");
-        expr = expr.replaceAll("^\\s*\\+", "");
+        expr = R2jsUtils.replaceAll(expr, "(return|if|else|\\(|\\{|\\|[\\|]|\\}|=|,|<|>) *\\+", "$1");
+        expr = R2jsUtils.replaceAll(expr, "\\+\\s*\\+", "+");
+        expr = R2jsUtils.replaceAll(expr, "\\-\\s*\\+", "-");
+        expr = R2jsUtils.replaceAll(expr, "\\*\\s*\\+", "*");
+        expr = R2jsUtils.replaceAll(expr, "\\/\\s*\\+", "/");
+        expr = R2jsUtils.replaceAll(expr, "\\:\\s*\\+", ":");
+        expr = R2jsUtils.replaceAll(expr, "\\;\\s*\\+", ";");
+        expr = R2jsUtils.replaceAll(expr, "\\^\\s*\\+", "^");
+        expr = R2jsUtils.replaceAll(expr, "^\\s*\\+", "");
         return expr;
     }
 
@@ -2276,11 +2772,11 @@ public class R2jsSession extends Rsession implements RLog {
 
         // We consider differently the '-' operator in '2-3' to the '-' negative: '-3'.
         // So we replace -3 by î3 first, but 2-3 stays 2-3
-        expr = expr.replaceAll("([\\[\\{\\(\\-\\\\=*\\/^;%+:,><&|ôâêŝĝ\\n]) *-", "$1 î");
+        expr = R2jsUtils.replaceAll(expr, "([\\[\\{\\(\\-\\\\=*\\/^;%+:,><&|ôâêŝĝ\\n]) *-", "$1 î");
 
         String stoppingCharacters = "-=*/^;%+:,><&|ôâêŝĝ\n"; // all operators but 'î'
-        expr = expr.replaceAll("[)]/", ") /");
-        expr = expr.replaceAll("(.)-", "$1 -");
+        expr = R2jsUtils.replaceAll(expr, "[)]/", ") /");
+        expr = R2jsUtils.replaceAll(expr, "(.)-", "$1 -");
 
         Map<String, String> operatorsMap = new HashMap<>();
         operatorsMap.put(">", "__R._gt");
@@ -2296,7 +2792,7 @@ public class R2jsSession extends Rsession implements RLog {
         operatorsMap.put("-", "math.subtract");
         operatorsMap.put("*", "math.dotMultiply");
         operatorsMap.put("/", "math.dotDivide");
-        operatorsMap.put("%*%", "math.multiply");
+        operatorsMap.put("%*%", "__linalg.multiply");
         operatorsMap.put("%/%", "math.floor(math.dotDivide");
         operatorsMap.put("%%", "math.mod");
         operatorsMap.put(":", "__R.range");
@@ -2441,7 +2937,7 @@ public class R2jsSession extends Rsession implements RLog {
 
     private void addGlobalVariables(String[] variables) {
         if (variablesSet == null) {
-            variablesSet = new HashSet<String>();
+            variablesSet = new VariablesSet();
         }
         for (String variable : variables) {
             variablesSet.add(variable);
@@ -2456,7 +2952,7 @@ public class R2jsSession extends Rsession implements RLog {
     private void storeGlobalVariables(String expr) {
 
         if (variablesSet == null) {
-            variablesSet = new HashSet<String>();
+            variablesSet = new VariablesSet();
         }
 
         int equalIndex = getNextExpressionLastIndex(expr, -1, "=") + 1;
@@ -2634,7 +3130,7 @@ public class R2jsSession extends Rsession implements RLog {
         Map<String, String> parametersAndValuesMap = new LinkedHashMap<>();
 
         // Put in map arguments with there values associated
-        Matcher matcher = Pattern.compile("([\\w\\-]+) *=* *(([\\w\\-]+))?").matcher(arguments);
+        Matcher matcher = R2jsUtils.pattern("([\\w\\-]+) *=* *(([\\w\\-]+))?").matcher(arguments);
         while (matcher.find()) {
             parametersAndValuesMap.put(matcher.group(1), matcher.group(2));
         }
@@ -2703,91 +3199,116 @@ public class R2jsSession extends Rsession implements RLog {
         return RserveDaemon.isLinux();
     }
 
+    /**
+     * Evaluate a js expression, using compiledScriptCache to avoid parsing and
+     * compiling again the same expression.
+     *
+     * @param jsExpr - the js expression
+     * @return the result of the evaluation
+     */
+    private Object evalJs(String jsExpr) throws ScriptException {
+        if (!((R2jsScriptEngine) js).isCompilable() || compiledScriptCache.getMaxSize() <= 0) {
+            return js.eval(jsExpr);
+        }
+        CompiledScript script = compiledScriptCache.get(jsExpr);
+        if (script == null) {
+            script = ((Compilable) js).compile(jsExpr);
+            compiledScriptCache.put(jsExpr, script);
+        }
+        return script.eval(js.getContext());
+    }
+
     @Override
-    protected synchronized boolean silentlyVoidEval(String expression, boolean tryEval) {
-        String jsExpr = "?";
-        try {
-            jsExpr = convertRtoJs(expression);
-            this.js.eval(jsExpr);
-        } catch (Exception e) {
-            String ls = "?";
+    protected boolean silentlyVoidEval(String expression, boolean tryEval) {
+        synchronized (lock()) {
+            String jsExpr = "?";
             try {
-                ls = (this.js.eval("JSON.stringify(" + THIS_ENVIRONMENT + ")")).toString();
-            } catch (Exception ee) {
-                ls = ee.getMessage();
+                jsExpr = translate(expression);
+                evalJs(jsExpr);
+            } catch (Exception e) {
+                logEvalError(expression, jsExpr, e);
+                return false;
             }
+            return true;
+        }
+    }
 
-            String msg = null;
-            if (expression.contains("\n")) {
-                msg = "Failed to evaluate code\n  ```{r}\n" + expression.replaceAll("^", "^  ") + "\n  ```\n as\n  ```{js}\n" + jsExpr.replaceAll("^", "^  ") + "\n  ```\n with variables: " + ls + "\n because: " + e.getMessage();
-            } else {
-                msg = "Failed to evaluate code\n  `{r} " + expression + " ` as `{js} " + jsExpr + " `\n with variables: " + ls + "\n because: " + e.getMessage();
-            }
-            log(msg, Level.ERROR);
-            return false;
+    private void logEvalError(String expression, String jsExpr, Exception e) {
+        logEvalError(null, expression, jsExpr, e);
+    }
+
+    // location - position of the expression in a sourced file, or null
+    private void logEvalError(String location, String expression, String jsExpr, Exception e) {
+        log(evalErrorMessage(location, expression, jsExpr, e), Level.ERROR);
+    }
+
+    // message of a failed evaluation, with the variables of the environment
+    private String evalErrorMessage(String location, String expression, String jsExpr, Exception e) {
+        String ls = "?";
+        try {
+            ls = (this.js.eval("JSON.stringify(" + THIS_ENVIRONMENT + ")")).toString();
+        } catch (Exception ee) {
+            ls = ee.getMessage();
+        }
+
+        String failed = "Failed to evaluate code" + (location == null ? "" : " at " + location);
+        if (expression.contains("\n")) {
+            return failed + "\n  ```{r}\n" + expression.replaceAll("^", "^  ") + "\n  ```\n as\n  ```{js}\n" + jsExpr.replaceAll("^", "^  ") + "\n  ```\n with variables: " + ls + "\n because: " + e.getMessage();
+        } else {
+            return failed + "\n  `{r} " + expression + " ` as `{js} " + jsExpr + " `\n with variables: " + ls + "\n because: " + e.getMessage();
         }
-        return true;
     }
 
     @Override
-    protected synchronized Object silentlyRawEval(String expression, boolean tryEval) {
-        Object result = null;
-        String jsExpr = "?";
-        try {
-            jsExpr = convertRtoJs(expression);
-            result = this.js.eval(jsExpr);
-        } catch (Exception e) {
-            String ls = "?";
+    protected Object silentlyRawEval(String expression, boolean tryEval) {
+        synchronized (lock()) {
+            Object result = null;
+            String jsExpr = "?";
             try {
-                ls = (String) this.js.eval("JSON.stringify(" + THIS_ENVIRONMENT + ")").toString();
-            } catch (Exception ee) {
-                ls = ee.getMessage();
-            }
-
-            String msg = null;
-            if (expression.contains("\n")) {
-                msg = "Failed to evaluate code\n  ```{r}\n" + expression.replaceAll("^", "^  ") + "\n  ```\n as\n  ```{js}\n" + jsExpr.replaceAll("^", "^  ") + "\n  ```\n with variables: " + ls + "\n because: " + e.getMessage();
-            } else {
-                msg = "Failed to evaluate code\n  `{r} " + expression + " ` as `{js} " + jsExpr + " `\n with variables: " + ls + "\n because: " + e.getMessage();
+                jsExpr = translate(expression);
+                result = evalJs(jsExpr);
+                // rows appended in place: view of the grown matrix
+                if (result instanceof ScriptObjectMirror && ((ScriptObjectMirror) result).hasMember("__grown__")) {
+                    result = ((ScriptObjectMirror) result).callMember("view");
+                }
+            } catch (Exception e) {
+                String msg = evalErrorMessage(null, expression, jsExpr, e);
+                log(msg, Level.ERROR);
+                return new RException(msg);
             }
-            log(msg, Level.ERROR);
-            return new RException(msg);
+            return result;
         }
-        return result;
     }
 
     @Override
-    public synchronized boolean set(String varname, double[][] data, String... names) throws RException {
+    public boolean set(String varname, double[][] data, String... names) throws RException {
+        synchronized (lock()) {
+
+            note_code(varname + " <- " + (data == null ? "list()" : toRcode(data)));
+            note_code("names(" + varname + ") <- " + toRcode(names));
+            note_code(varname + " <- data.frame(" + varname + ")");
+
+            // RList list = buildRList(data, names);
+            // log(HEAD_SET + varname + " <- " + list, Level.INFO);
+            varname = nameRtoJs(varname);
+            for (int i = 0; i < names.length; i++) {
+                names[i] = nameRtoJs(names[i]);
+            }
+            try {
+                //synchronized (js) {
+                putMatrix(varname, data);
 
-        note_code(varname + " <- " + (data == null ? "list()" : toRcode(data)));
-        note_code("names(" + varname + ") <- " + toRcode(names));
-        note_code(varname + " <- data.frame(" + varname + ")");
+                js.eval(THIS_ENVIRONMENT + "." + varname + " = " + varname);
+                putNames(varname, names);
+                variablesSet.add(varname);
+                //}
+            } catch (Exception e) {
+                log(HEAD_ERROR + " " + e.getMessage(), Level.ERROR);
+                return false;
+            }
 
-        // RList list = buildRList(data, names);
-        // log(HEAD_SET + varname + " <- " + list, Level.INFO);
-        varname = nameRtoJs(varname);
-        String allnames = "";
-        for (int i = 0; i < names.length; i++) {
-            names[i] = nameRtoJs(names[i]);
-            allnames = allnames + ",'" + names[i] + "'";
-        }
-        allnames = allnames.substring(1);
-        try {
-            //synchronized (js) {
-            String dim = "[" + data.length + "," + data[0].length + "]";
-            String stringMatrix = Arrays.deepToString(data);
-            js.eval(varname + " = math.reshape(" + stringMatrix + ", " + dim + ")");
-
-            js.eval(THIS_ENVIRONMENT + "." + varname + " = " + varname);
-            js.eval(THIS_ENVIRONMENT + "." + varname + ".names = [" + allnames + "]");
-            variablesSet.add(varname);
-            //}
-        } catch (Exception e) {
-            log(HEAD_ERROR + " " + e.getMessage(), Level.ERROR);
-            return false;
+            return true;
         }
-
-        return true;
     }
 
     /**
@@ -2798,59 +3319,107 @@ public class R2jsSession extends Rsession implements RLog {
      * @return succeeded ?
      */
     @Override
-    public synchronized boolean set(String varname, Object var) {
+    public boolean set(String varname, Object var) {
+        synchronized (lock()) {
 
-        note_code(varname + " <- " + toRcode(var));
+            note_code(varname + " <- " + toRcode(var));
 
-        varname = nameRtoJs(varname);
-        try {
-            //synchronized (js) {
-            // FIXME: find a better solution than this
-            // For 2d double array, we need to instanciate the matrix with the function "math.reshape"
-            // I don't know why but the function math.matrix doesn't create the same js object than math.reshape and
-            // the output ScriptMirrorObject is uncastable in java double[][] array and operations on a math.matrix
-            // object don't work.
-            if (var instanceof double[][]) {
-                double[][] var2DArray = (double[][]) var;
-                String dim = "[" + var2DArray.length + "," + var2DArray[0].length + "]";
-                String stringMatrix = Arrays.deepToString(var2DArray);
-                js.eval(varname + " = math.reshape(" + stringMatrix + ", " + dim + ")");
+            varname = nameRtoJs(varname);
+            try {
+                //synchronized (js) {
+                // FIXME: find a better solution than this
+                // For 2d double array, we need to instanciate the matrix with the function "math.reshape"
+                // I don't know why but the function math.matrix doesn't create the same js object than math.reshape and
+                // the output ScriptMirrorObject is uncastable in java double[][] array and operations on a math.matrix
+                // object don't work.
+                if (var instanceof double[][]) {
+                    double[][] var2DArray = (double[][]) var;
+                    putMatrix(varname, var2DArray);
+
+                    js.eval(THIS_ENVIRONMENT + "." + varname + " = " + varname);
+                    String[] names = new String[var2DArray[0].length];
+                    for (int i = 0; i < names.length; i++) {
+                        names[i] = "X" + (i + 1);
+                    }
+                    putNames(varname, names);
+                    variablesSet.add(varname);
+                } else if (var instanceof double[]) {
+                    putArray(varname, (double[]) var);
 
-                js.eval(THIS_ENVIRONMENT + "." + varname + " = " + varname);
-                String allnames = "";
-                for (int i = 0; i < var2DArray[0].length; i++) {
-                    allnames = allnames + ",'X" + (i + 1) + "'";
+                    js.eval(THIS_ENVIRONMENT + "." + varname + " = " + varname);
+                    variablesSet.add(varname);
+                } else {
+                    js.put(varname, var);
+                    js.eval(THIS_ENVIRONMENT + "." + varname + " = " + varname);
+                    variablesSet.add(varname);
                 }
-                allnames = allnames.substring(1);
-                js.eval(THIS_ENVIRONMENT + "." + varname + ".names = [" + allnames + "]");
-                variablesSet.add(varname);
-            } else if (var instanceof double[]) {
-                double[] var1DArray = (double[]) var;
-                String dim = "[" + var1DArray.length + ",1]";
-                String stringMatrix = Arrays.toString(var1DArray);
-                js.eval(varname + " = " + Arrays.toString(var1DArray));
-
-                js.eval(THIS_ENVIRONMENT + "." + varname + " = " + varname);
-                variablesSet.add(varname);
-            } else {
-                js.put(varname, var);
-                js.eval(THIS_ENVIRONMENT + "." + varname + " = " + varname);
-                variablesSet.add(varname);
+                //}
+            } catch (Exception e) {
+                log(HEAD_ERROR + " " + e.getMessage(), Level.ERROR);
+                return false;
             }
-            //}
-        } catch (Exception e) {
-            log(HEAD_ERROR + " " + e.getMessage(), Level.ERROR);
-            return false;
+
+            return true;
         }
+    }
 
-        return true;
+    // Temporary js variable used to pass java arrays to js engine
+    private static final String JAVA_DATA = "__java_data__";
+
+    /**
+     * Set js variable as a js array, passing the java array through engine
+     * bindings (so without writing it as js code).
+     *
+     * @param varname - js variable name
+     * @param data - values
+     */
+    private void putArray(String varname, double[] data) throws ScriptException {
+        js.put(JAVA_DATA, data);
+        try {
+            js.eval(varname + " = Java.from(" + JAVA_DATA + ")");
+        } finally {
+            js.getBindings(ScriptContext.ENGINE_SCOPE).remove(JAVA_DATA);
+        }
     }
 
-    public File putFileInWorkspace(File file) {
-        if (file.isAbsolute()) {
-            return file;
+    /**
+     * Set js variable as a js matrix (array of rows), passing the java array
+     * directly to the js engine (so without writing it as js code).
+     *
+     * @param varname - js variable name
+     * @param data - values, as an array of rows
+     */
+    private void putMatrix(String varname, double[][] data) throws ScriptException {
+        int ncol = data[0].length;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i].length != ncol) {
+                throw new IllegalArgumentException("Row " + (i + 1) + " of " + varname + " has " + data[i].length + " columns instead of " + ncol);
+            }
         }
-        File rf = local2remotePath(file);
+        // built in the global scope of math.js, as math.reshape(...) did before
+        js.put(varname, ((R2jsScriptEngine) js).toMatrix(data));
+    }
+
+    /**
+     * Set names of a js variable (already stored in THIS_ENVIRONMENT).
+     *
+     * @param varname - js variable name
+     * @param names - names of the columns
+     */
+    private void putNames(String varname, String[] names) throws ScriptException {
+        js.put(JAVA_DATA, names);
+        try {
+            js.eval(THIS_ENVIRONMENT + "." + varname + ".names = Java.from(" + JAVA_DATA + ")");
+        } finally {
+            js.getBindings(ScriptContext.ENGINE_SCOPE).remove(JAVA_DATA);
+        }
+    }
+
+    public File putFileInWorkspace(File file) {
+        if (file.isAbsolute()) {
+            return file;
+        }
+        File rf = local2remotePath(file);
         if (!rf.getAbsolutePath().equals(file.getAbsolutePath())) {
             try {
                 FileUtils.copyFile(file, rf);
@@ -2883,43 +3452,226 @@ public class R2jsSession extends Rsession implements RLog {
     }
 
     @Override
-    public synchronized void source(File file) {
-        file = putFileInWorkspace(file);
+    public void source(File file) {
+        synchronized (lock()) {
+            file = putFileInWorkspace(file);
+
+            if (!file.isFile()) {
+                throw new IllegalArgumentException("File " + file + " is not reachable.");
+            }
 
-        if (!file.isFile()) {
-            throw new IllegalArgumentException("File " + file + " is not reachable.");
+            File cache = null;
+            if (sourceCacheDir != null) {
+                try {
+                    cache = R2jsSourceCache.file(sourceCacheDir, file, scopeNames());
+                } catch (IOException e) {
+                    log(IO_HEAD + e.getMessage(), Level.ERROR);
+                    return;
+                }
+                List<R2jsSourceCache.Statement> statements = R2jsSourceCache.read(cache);
+                if (statements != null) {
+                    // already translated (by this session, or a previous one)
+                    int n = 0;
+                    for (R2jsSourceCache.Statement s : statements) {
+                        variablesSet.addAll(Arrays.asList(s.declaredVariables));
+                        evalSourced(file, ++n, s.line, s.r, s.js, null, 0);
+                    }
+                    return;
+                }
+            }
+
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8")) {
+                sourceStatements(file, R2jsUtils.parse(reader), cache);
+            } catch (IOException | UncheckedIOException e) {
+                log(IO_HEAD + e.getMessage(), Level.ERROR);
+            }
         }
-        StringBuilder sb = new StringBuilder();
-        BufferedReader reader = null;
-        InputStreamReader isr = null;
-        FileInputStream fis = null;
-        String line;
+    }
+
+    /**
+     * Statement of a sourced file, translated
+     */
+    private static class SourcedStatement {
+
+        final String r;
+        final int line;
+        String js = "?";
+        // translation recorded for the cache of source(), or null
+        Translation translation;
+        Exception error;
+        long translationTime;
+
+        SourcedStatement(String r, int line) {
+            this.r = r;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Thrown by a translation ahead needing the js engine, to be done again by
+     * the evaluating thread. Nothing is declared before (in variablesSet or
+     * functionsSet), so the statement is just translated as if the first time.
+     */
+    private static class TranslationDeferred extends RuntimeException {
 
+        private static final long serialVersionUID = 1L;
+
+        TranslationDeferred() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Set in the worker threads while they translate ahead a sourced statement
+    private static final ThreadLocal<Boolean> TRANSLATING_AHEAD = new ThreadLocal<>();
+
+    // translateSourced, in a worker thread while the previous statement is evaluated
+    private SourcedStatement translateSourcedAhead(String expr, int line, boolean record) {
+        TRANSLATING_AHEAD.set(Boolean.TRUE);
         try {
-            fis = new FileInputStream(file);
-            isr = new InputStreamReader(fis, "UTF-8");
-            reader = new BufferedReader(isr);
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-                sb.append("\n");
+            return translateSourced(expr, line, record);
+        } finally {
+            TRANSLATING_AHEAD.remove();
+        }
+    }
+
+    // translate one statement of a sourced file (errors are kept for the evaluation)
+    private SourcedStatement translateSourced(String expr, int line, boolean record) {
+        SourcedStatement s = new SourcedStatement(expr, line);
+        long start = System.currentTimeMillis();
+        try {
+            synchronized (translator) {
+                if (record) {
+                    s.translation = convertRtoJsRecording(expr);
+                    s.js = s.translation.js;
+                } else {
+                    s.js = translateUnsynchronized(expr);
+                }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            s.error = e;
+        }
+        s.translationTime = System.currentTimeMillis() - start;
+        return s;
+    }
+
+    /**
+     * Translate and evaluate the statements of a sourced file, as they are
+     * read. The next statement is translated by a worker thread while the
+     * current one is evaluated, if several processors are available (and
+     * except with concurrent environments, as the translation depends on the
+     * environment of the calling thread). The worker never uses the js engine:
+     * statements needing it are translated again by the calling thread, once
+     * the previous ones are evaluated.
+     *
+     * @param file - the sourced file
+     * @param exprs - parser of the statements of the file
+     * @param cache - file where to store the translations (see
+     * R2jsSourceCache), or null
+     */
+    private void sourceStatements(File file, R2jsUtils.Parser exprs, File cache) {
+        boolean cacheable = cache != null;
+        List<R2jsSourceCache.Statement> statements = new ArrayList<>();
+        ExecutorService worker = environments == null && translateSourcedAhead ? Executors.newSingleThreadExecutor(SOURCE_THREADS) : null;
+        try {
+            String expr = exprs.hasNext() ? exprs.next() : null;
+            int line = exprs.line();
+            Future<SourcedStatement> translating = null;
+            int n = 0;
+            while (expr != null) {
+                // load() reads variables from file while translating, so it cannot be cached
+                if (expr.contains("load(")) {
+                    cacheable = false;
+                }
+                SourcedStatement s;
+                if (translating == null) {
+                    s = translateSourced(expr, line, cacheable);
+                } else {
+                    try {
+                        s = translating.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        log("Interrupted source of " + file, Level.WARNING);
+                        return;
+                    } catch (ExecutionException e) {
+                        s = new SourcedStatement(expr, line);
+                        s.error = e;
+                    }
+                    if (s.error instanceof TranslationDeferred) {
+                        s = translateSourced(expr, line, cacheable);
+                    }
+                }
+
+                String next = exprs.hasNext() ? exprs.next() : null;
+                int nextLine = exprs.line();
+                translating = null;
+                // a statement calling load() is translated once previous ones are evaluated (as load() reads files)
+                if (worker != null && next != null && !next.contains("load(")) {
+                    final String e = next;
+                    final boolean record = cacheable;
+                    translating = worker.submit(() -> translateSourcedAhead(e, nextLine, record));
+                }
+
+                if (s.translation != null) {
+                    statements.add(new R2jsSourceCache.Statement(s.r, s.line, s.js, s.translation.declaredVariables));
+                } else if (s.error != null) {
+                    // not translated: next sessions will have to try again
+                    cacheable = false;
+                }
+                evalSourced(file, ++n, s.line, s.r, s.js, s.error, s.translationTime);
+                expr = next;
+                line = nextLine;
+            }
+            if (exprs.unterminated() > 0) {
+                log("Ignored unterminated statement at " + file + ":" + exprs.unterminated(), Level.WARNING);
+            }
         } finally {
+            if (worker != null) {
+                worker.shutdownNow();
+            }
+        }
+        if (cacheable) {
             try {
-                fis.close();
-                isr.close();
-                reader.close();
-            } catch (Exception ee) {
-                ee.printStackTrace();
+                R2jsSourceCache.write(cache, statements);
+            } catch (IOException e) {
+                log("Could not write translation cache " + cache + ": " + e.getMessage(), Level.WARNING);
             }
         }
+    }
 
-        for (String expr : R2jsUtils.parse(sb.toString())) {
-            silentlyVoidEval(expr, false);
+    // Evaluate one translated statement of a sourced file, notifying the eval listeners
+    private void evalSourced(File file, int statement, int line, String expr, String jsExpr, Exception translationError, long translationTime) {
+        for (EvalListener b : eval) {
+            b.eval(expr);
+        }
+        long start = System.currentTimeMillis();
+        if (translationError != null) {
+            logEvalError(file + ":" + line, expr, jsExpr, translationError);
+        } else {
+            try {
+                evalJs(jsExpr);
+            } catch (Exception e) {
+                logEvalError(file + ":" + line, expr, jsExpr, e);
+            }
+        }
+        long evaluationTime = System.currentTimeMillis() - start;
+        for (EvalListener b : eval) {
+            b.sourced(file, statement, expr, translationTime, evaluationTime);
         }
     }
 
+    // Translate next statements of sourced files in a worker thread (useless with one processor)
+    static boolean translateSourcedAhead = Runtime.getRuntime().availableProcessors() > 1;
+
+    // Worker threads translating the statements of sourced files
+    private static final ThreadFactory SOURCE_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "R2js source");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
     /**
      * delete R variables in R env.
      *
@@ -2928,38 +3680,43 @@ public class R2jsSession extends Rsession implements RLog {
      * @throws org.math.R.Rsession.RException Could not do rm
      */
     @Override
-    public synchronized boolean rm(String... vars) throws RException {
-        try {
-            //synchronized (js) {
-            for (String var : vars) {
-                js.eval("delete " + THIS_ENVIRONMENT + "." + var + ";");
-                variablesSet.remove(var);
-                js.eval("delete " + var + ";");
+    public boolean rm(String... vars) throws RException {
+        synchronized (lock()) {
+            try {
+                //synchronized (js) {
+                for (String var : vars) {
+                    js.eval("__env.remove(" + THIS_ENVIRONMENT + ", '" + var + "');");
+                    variablesSet.remove(var);
+                    js.eval("delete " + var + ";");
+                }
+                //}
+            } catch (Exception e) {
+                log(HEAD_ERROR + " " + e.getMessage(), Level.ERROR);
+                return false;
             }
-            //}
-        } catch (Exception e) {
-            log(HEAD_ERROR + " " + e.getMessage(), Level.ERROR);
-            return false;
-        }
 
-        return true;
+            return true;
+        }
     }
 
     @Override
-    public synchronized boolean rmAll() {
-        try {
-            //synchronized (js) {
-            js.eval("delete " + envName + ";");
-            variablesSet.clear();
-            js.eval("var " + envName + " = math.clone({});");
-            js.eval(THIS_ENVIRONMENT + " = " + envName);
-            //}
-        } catch (Exception e) {
-            log(HEAD_ERROR + " " + e.getMessage(), Level.ERROR);
-            return false;
-        }
+    public boolean rmAll() {
+        synchronized (lock()) {
+            try {
+                //synchronized (js) {
+                String envName = currentEnvName();
+                js.eval("delete " + envName + ";");
+                variablesSet.clear();
+                js.eval("var " + envName + " = math.clone({});");
+                js.eval(THIS_ENVIRONMENT + " = " + envName);
+                //}
+            } catch (Exception e) {
+                log(HEAD_ERROR + " " + e.getMessage(), Level.ERROR);
+                return false;
+            }
 
-        return true;
+            return true;
+        }
     }
 
     @Override
@@ -2983,6 +3740,121 @@ public class R2jsSession extends Rsession implements RLog {
         return (double[]) ScriptUtils.convert(o, double[].class);
     }
 
+    /**
+     * Copy a js array of numbers in a double[], checking elements type in the
+     * same pass.
+     *
+     * Elements are boxed by Nashorn: it has no bulk copy of js arrays in java
+     * arrays, as o.to(double[].class) also converts elements one by one (and
+     * would convert non numbers, like strings or booleans, silently). So each
+     * element is copied once as a Number, then unboxed while checked.
+     *
+     * @param o - js object
+     * @return the values, or null if o is not a (non empty) array of numbers
+     */
+    static double[] toDoubles(ScriptObjectMirror o) {
+        if (!o.isArray() || !(o.getSlot(0) instanceof Number)) {
+            return null;
+        }
+        // one copy by the engine (numbers are boxed, not wrapped), then check types
+        Object[] values = o.to(Object[].class);
+        double[] v = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (!(values[i] instanceof Number)) {
+                return null;
+            }
+            v[i] = ((Number) values[i]).doubleValue();
+        }
+        return v;
+    }
+
+    /**
+     * Copy a js array of arrays of numbers (rows) in a double[][], checking
+     * elements type in the same pass (elements are boxed, see toDoubles).
+     *
+     * @param o - js object
+     * @return the values, or null if o is not a (non empty) array of arrays of
+     * numbers
+     */
+    static double[][] toDoubleRows(ScriptObjectMirror o) {
+        if (!o.isArray() || !(o.getSlot(0) instanceof ScriptObjectMirror)) {
+            return null;
+        }
+        int n = ((Number) o.getMember("length")).intValue();
+        double[][] v = new double[n][];
+        for (int i = 0; i < n; i++) {
+            Object r = o.getSlot(i); // not copied with to(Object[].class), as the engine would not wrap rows
+            if (!(r instanceof ScriptObjectMirror)) {
+                return null;
+            }
+            ScriptObjectMirror row = (ScriptObjectMirror) r;
+            if (!row.isArray()) {
+                return null;
+            }
+            Object[] values = row.to(Object[].class);
+            v[i] = new double[values.length];
+            for (int j = 0; j < values.length; j++) {
+                if (!(values[j] instanceof Number)) {
+                    return null;
+                }
+                v[i][j] = ((Number) values[j]).doubleValue();
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Get values of a js matrix (or vector, as a column) in one flat array,
+     * column after column (as R stores matrices), for instance to pass it to
+     * another R engine without building a double[][].
+     *
+     * @param o - js matrix or vector (or double[][], double[])
+     * @param dim - if not null, filled with {nrow, ncol}
+     * @return values in column-major order, or null if o is null
+     * @throws ClassCastException
+     */
+    public double[] asColumnMajorArray(Object o, int[] dim) throws ClassCastException {
+        double[][] rows = null;
+        double[] column = null;
+        if (o instanceof ScriptObjectMirror) {
+            column = toDoubles((ScriptObjectMirror) o);
+            if (column == null) {
+                rows = toDoubleRows((ScriptObjectMirror) o);
+            }
+        } else if (o instanceof double[]) {
+            column = (double[]) o;
+        }
+        if (column == null && rows == null) {
+            rows = asMatrix(o);
+            if (rows == null) {
+                return null;
+            }
+        }
+        if (column != null) {
+            if (dim != null) {
+                dim[0] = column.length;
+                dim[1] = 1;
+            }
+            return column;
+        }
+        int nrow = rows.length;
+        int ncol = nrow == 0 ? 0 : rows[0].length;
+        double[] values = new double[nrow * ncol];
+        for (int i = 0; i < nrow; i++) {
+            if (rows[i].length != ncol) {
+                throw new ClassCastException("[asColumnMajorArray] Not a matrix: row " + (i + 1) + " has " + rows[i].length + " columns instead of " + ncol);
+            }
+            for (int j = 0; j < ncol; j++) {
+                values[i + j * nrow] = rows[i][j];
+            }
+        }
+        if (dim != null) {
+            dim[0] = nrow;
+            dim[1] = ncol;
+        }
+        return values;
+    }
+
     @Override
     public double[][] asMatrix(Object o) throws ClassCastException {
         if (o == null) {
@@ -2994,7 +3866,17 @@ public class R2jsSession extends Rsession implements RLog {
             return t(new double[][]{(double[]) o});
         } else if (o instanceof Double) {
             return new double[][]{{(double) o}};
-        } else /*if (o instanceof Map)*/ {
+        } else if (o instanceof ScriptObjectMirror && ((ScriptObjectMirror) o).isArray()) {
+            double[][] rows = toDoubleRows((ScriptObjectMirror) o);
+            if (rows != null) {
+                return rows;
+            }
+            double[] column = toDoubles((ScriptObjectMirror) o);
+            if (column != null) {
+                return t(new double[][]{column});
+            }
+        }
+        /*if (o instanceof Map)*/ {
             double[][] vals = null;
             int i = 0;
             try {
@@ -3112,6 +3994,12 @@ public class R2jsSession extends Rsession implements RLog {
         if (o instanceof Integer) {
             return Double.valueOf((int) o);
         } else if (o instanceof ScriptObjectMirror) {
+            // Fast path for arrays of numbers, without trying conversions below
+            double[] v = toDoubles((ScriptObjectMirror) o);
+            if (v != null) {
+                return v;
+            }
+
             try {
 //                System.err.println("// Casting of the ScriptObjectMirror to a double matrix");
                 return ((ScriptObjectMirror) o).to(double[][].class);
@@ -3164,6 +4052,269 @@ public class R2jsSession extends Rsession implements RLog {
 
     Map<String, Set<String>> envVariables = new HashMap<>();
 
+    /**
+     * @return the environment of the current thread (when concurrent
+     * environments are enabled)
+     */
+    private Environment environment() {
+        Environment env = threadEnvironment.get();
+        return env == null ? defaultEnvironment : env;
+    }
+
+    private String currentEnvName() {
+        return environments == null ? envName : environment().name;
+    }
+
+    /**
+     * @return the object evaluations are synchronized on: the session, or the
+     * current environment if concurrent environments are enabled
+     */
+    private Object lock() {
+        return environments == null ? this : environment();
+    }
+
+    /**
+     * Get an environment, creating it (with its own js global scope) if
+     * needed.
+     *
+     * @param envName - js name of the environment
+     * @return the environment
+     */
+    private Environment getEnvironment(String envName) throws ScriptException {
+        synchronized (environments) {
+            Environment env = environments.get(envName);
+            if (env == null) {
+                env = new Environment(envName, ((R2jsScriptEngine) js).newContext());
+                Environment current = threadEnvironment.get();
+                setThreadEnvironment(env);
+                try {
+                    loadJSLibraries();
+                    for (String code : functionsCode) {
+                        js.eval(code);
+                    }
+                    js.eval("var " + envName + " = math.clone({});");
+                    js.eval(THIS_ENVIRONMENT + " = " + envName);
+                    if (wdir != null) {
+                        silentlyVoidEval("setwd('" + toRpath(wdir.getAbsolutePath()) + "')");
+                    }
+                } finally {
+                    setThreadEnvironment(current);
+                }
+                environments.put(envName, env);
+            }
+            return env;
+        }
+    }
+
+    private void setThreadEnvironment(Environment env) {
+        if (env == null) {
+            threadEnvironment.remove();
+        } else {
+            threadEnvironment.set(env);
+        }
+        ((R2jsScriptEngine) js).setThreadContext(env == null ? null : env.context);
+    }
+
+    @Override
+    public String getGlobalEnv() {
+        String name = currentEnvName();
+        return name.substring(2, name.length() - 2);
+    }
+
+    /**
+     * Set of variables names, with a hash code updated at each change (instead
+     * of computed from all names, see translate), and recording the names
+     * added during a translation. Copies share the names until one of them is
+     * changed (see copy).
+     */
+    static class VariablesSet extends AbstractSet<String> {
+
+        // source of versions, so that two different contents never have the same version
+        private static final AtomicLong VERSIONS = new AtomicLong();
+
+        private Set<String> names = new HashSet<>();
+        // names are shared with a copy, so must be copied before any change
+        private boolean shared = false;
+        // changed with names (and shared with them by copies)
+        private long version = VERSIONS.incrementAndGet();
+        private List<String> added;
+
+        /**
+         * @return a copy of this set, sharing its names until one of the sets
+         * is changed
+         */
+        VariablesSet copy() {
+            VariablesSet c = new VariablesSet();
+            c.setAll(this);
+            return c;
+        }
+
+        /**
+         * Replace the names of this set by the ones of another set (shared
+         * until one of the sets is changed).
+         *
+         * @param s - the set to copy
+         */
+        void setAll(VariablesSet s) {
+            names = s.names;
+            version = s.version;
+            shared = s.shared = true;
+        }
+
+        /**
+         * @return identifier of the content of this set: changed by any
+         * change of its names, and the same for copies sharing its names
+         */
+        long version() {
+            return version;
+        }
+
+        private void unshare() {
+            if (shared) {
+                names = new HashSet<>(names);
+                shared = false;
+            }
+        }
+
+        /**
+         * @param added - list where added names are stored from now (null to
+         * stop recording)
+         */
+        void record(List<String> added) {
+            this.added = added;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final Set<String> iterated = names;
+            final Iterator<String> it = iterated.iterator();
+            return new Iterator<String>() {
+                String last;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return last = it.next();
+                }
+
+                @Override
+                public void remove() {
+                    if (names == iterated && !shared) {
+                        it.remove();
+                    } else {
+                        // iterated names are shared: remove from own copy
+                        unshare();
+                        names.remove(last);
+                    }
+                    version = VERSIONS.incrementAndGet();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return names.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return names.contains(o);
+        }
+
+        @Override
+        public boolean add(String v) {
+            if (names.contains(v)) {
+                return false;
+            }
+            unshare();
+            names.add(v);
+            version = VERSIONS.incrementAndGet();
+            if (added != null) {
+                added.add(v);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!names.contains(o)) {
+                return false;
+            }
+            unshare();
+            names.remove(o);
+            version = VERSIONS.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            names = new HashSet<>();
+            shared = false;
+            version = VERSIONS.incrementAndGet();
+        }
+    }
+
+    /**
+     * Variables declared in the current environment, when concurrent
+     * environments are enabled (used as variablesSet).
+     */
+    private class EnvironmentVariables extends VariablesSet {
+
+        @Override
+        public Iterator<String> iterator() {
+            return environment().variables.iterator();
+        }
+
+        @Override
+        public int size() {
+            return environment().variables.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return environment().variables.contains(o);
+        }
+
+        @Override
+        public boolean add(String v) {
+            return environment().variables.add(v);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return environment().variables.remove(o);
+        }
+
+        @Override
+        public void clear() {
+            environment().variables.clear();
+        }
+
+        @Override
+        long version() {
+            return environment().variables.version();
+        }
+
+        @Override
+        void record(List<String> added) {
+            environment().variables.record(added);
+        }
+
+        @Override
+        VariablesSet copy() {
+            return environment().variables.copy();
+        }
+
+        @Override
+        void setAll(VariablesSet s) {
+            environment().variables.setAll(s);
+        }
+    }
+
     @Override
     public void setGlobalEnv(String envName) {
         if (envName == null) {
@@ -3172,6 +4323,15 @@ public class R2jsSession extends Rsession implements RLog {
             envName = "__" + envName + "__";
         }
 
+        if (environments != null) {
+            try {
+                setThreadEnvironment(getEnvironment(envName));
+            } catch (ScriptException ex) {
+                Log.Err.println(ex.getMessage());
+            }
+            return;
+        }
+
         try {
             if (asLogical(js.eval("typeof " + envName + " == 'undefined'"))) {// env still not exists            
                 js.eval("var " + envName + " = math.clone({});");
@@ -3182,11 +4342,16 @@ public class R2jsSession extends Rsession implements RLog {
         }
 
         String oldEnv = this.envName;
-        envVariables.put(oldEnv, new TreeSet(variablesSet));
+        envVariables.put(oldEnv, copyOf(variablesSet));
 
-        variablesSet.clear();
-        if (envVariables.containsKey(envName)) {
-            variablesSet.addAll(envVariables.get(envName));
+        Set<String> variables = envVariables.get(envName);
+        if (variables instanceof VariablesSet && variablesSet instanceof VariablesSet) {
+            ((VariablesSet) variablesSet).setAll((VariablesSet) variables);
+        } else {
+            variablesSet.clear();
+            if (variables != null) {
+                variablesSet.addAll(variables);
+            }
         }
 
         this.envName = envName;
@@ -3200,10 +4365,34 @@ public class R2jsSession extends Rsession implements RLog {
             envName = "__" + envName + "__";
         }
 
+        if (environments != null) {
+            try {
+                copyEnvironment(environment(), getEnvironment(envName));
+            } catch (ScriptException ex) {
+                Log.Err.println(ex.getMessage());
+            }
+            return;
+        }
+
+        if (envName.equals(this.envName)) {
+            return;
+        }
+
         try {
             if (asLogical(js.eval("typeof " + envName + " == 'undefined'"))) // env still not exists            
             {
-                js.eval("var " + envName + " = math.clone({});");
+                // fork current env (so the one of THIS_ENVIRONMENT), with copy-on-write (see env.js): no value is copied.
+                // Environments are objects of the libraries global scope, wrapped differently at each access:
+                // so each one is read once, and THIS_ENVIRONMENT is not compared to envName in js.
+                js.eval("var " + envName + ";");
+                js.eval("(function(f) {"
+                        + "var current = f[0];"
+                        + THIS_ENVIRONMENT + " = current;"
+                        + this.envName + " = current;"
+                        + envName + " = f[1];"
+                        + "})(__env.fork(" + this.envName + "))");
+                envVariables.put(envName, copyOf(variablesSet));
+                return;
             }
         } catch (ScriptException ex) {
             Log.Err.println(ex.getMessage());
@@ -3218,9 +4407,58 @@ public class R2jsSession extends Rsession implements RLog {
             }
         }
         if (!envVariables.containsKey(envName)) {
-            envVariables.put(envName, new TreeSet(variablesSet));
+            envVariables.put(envName, copyOf(variablesSet));
         } else {
-            envVariables.get(envName).addAll(new TreeSet(variablesSet));
+            envVariables.get(envName).addAll(variablesSet);
+        }
+    }
+
+    // copy of a variables set, sharing its names if possible (see VariablesSet.copy)
+    private static Set<String> copyOf(Set<String> variables) {
+        return variables instanceof VariablesSet ? ((VariablesSet) variables).copy() : new TreeSet<>(variables);
+    }
+
+    /**
+     * Copy variables of an environment in another one (which has its own js
+     * global scope). Values are copied by reference, as for environments
+     * sharing the same global scope, but functions are evaluated again in the
+     * target global scope, so they use the variables of the target
+     * environment.
+     *
+     * @param from - source environment
+     * @param to - target environment
+     */
+    private void copyEnvironment(Environment from, Environment to) throws ScriptException {
+        if (from == to) {
+            return;
+        }
+        Map<String, Object> values = new LinkedHashMap<>();
+        Map<String, String> functions = new LinkedHashMap<>();
+        Set<String> variables;
+        synchronized (from) {
+            ScriptObjectMirror fromEnv = (ScriptObjectMirror) js.eval(from.name, from.context);
+            for (String o : ls(true)) {
+                if (!fromEnv.hasMember(o)) {
+                    continue;
+                }
+                Object v = fromEnv.getMember(o);
+                if (v instanceof ScriptObjectMirror && ((ScriptObjectMirror) v).isFunction()) {
+                    functions.put(o, v.toString());
+                } else {
+                    values.put(o, v);
+                }
+            }
+            variables = new TreeSet<>(from.variables);
+        }
+        synchronized (to) {
+            ScriptObjectMirror toEnv = (ScriptObjectMirror) js.eval(to.name, to.context);
+            for (Map.Entry<String, Object> v : values.entrySet()) {
+                toEnv.setMember(v.getKey(), v.getValue());
+            }
+            for (Map.Entry<String, String> f : functions.entrySet()) {
+                toEnv.setMember(f.getKey(), js.eval("(" + f.getValue() + ")", to.context));
+            }
+            to.variables.addAll(variables);
         }
     }
 
@@ -0,0 +1,399 @@
+package org.math.R;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary snapshot of R2js variables, as written by save() and read by load()
+ * in R.js. Variables are written one by one (so without building the whole
+ * file content in memory), numeric arrays as raw doubles, and the file is
+ * memory mapped when read.
+ *
+ * File format: "R2JS" magic, version, then for each variable: name, type,
+ * payload, optional names (of data frame columns).
+ */
+public class R2jsSnapshot {
+
+    private static final byte[] MAGIC = {'R', '2', 'J', 'S'};
+    static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final byte NULL = 0;
+    public static final byte NUMBER = 1;
+    public static final byte BOOLEAN = 2;
+    public static final byte STRING = 3;
+    public static final byte NUMBERS = 4;
+    public static final byte MATRIX = 5;
+    public static final byte FUNCTION = 6;
+    public static final byte JSON = 7;
+
+    private R2jsSnapshot() {
+    }
+
+    /**
+     * @param path - a file path
+     * @return true if the file is a snapshot (else, it may be a json save of
+     * previous versions)
+     */
+    public static boolean isSnapshot(String path) {
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = new FileInputStream(path)) {
+            int n = 0;
+            while (n < magic.length) {
+                int r = in.read(magic, n, magic.length - n);
+                if (r < 0) {
+                    return false;
+                }
+                n += r;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * @param path - the snapshot file
+     * @return names of variables stored in the snapshot (values are skipped)
+     * @throws IOException
+     */
+    public static String[] names(String path) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (Reader r = new Reader(path)) {
+            while (r.next()) {
+                names.add(r.name());
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Write variables in a snapshot file, one after the other.
+     */
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream out;
+
+        /**
+         * @param path - the snapshot file (overwritten)
+         * @throws IOException
+         */
+        public Writer(String path) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        private void begin(String name, byte type) throws IOException {
+            writeText(name);
+            out.writeByte(type);
+        }
+
+        private void writeText(String s) throws IOException {
+            byte[] b = s.getBytes(UTF8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        private void end(String[] names) throws IOException {
+            if (names == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(names.length);
+                for (String n : names) {
+                    writeText(n);
+                }
+            }
+        }
+
+        public void writeNull(String name) throws IOException {
+            begin(name, NULL);
+            end(null);
+        }
+
+        public void writeNumber(String name, double value) throws IOException {
+            begin(name, NUMBER);
+            out.writeDouble(value);
+            end(null);
+        }
+
+        public void writeBoolean(String name, boolean value) throws IOException {
+            begin(name, BOOLEAN);
+            out.writeBoolean(value);
+            end(null);
+        }
+
+        public void writeString(String name, String value) throws IOException {
+            begin(name, STRING);
+            writeText(value);
+            end(null);
+        }
+
+        /**
+         * @param name - variable name
+         * @param values - numeric vector
+         * @param names - names of the vector (may be null)
+         * @throws IOException
+         */
+        public void writeNumbers(String name, double[] values, String[] names) throws IOException {
+            begin(name, NUMBERS);
+            out.writeInt(values.length);
+            writeDoubles(values);
+            end(names);
+        }
+
+        /**
+         * @param name - variable name
+         * @param rows - matrix, as an array of rows with same length
+         * @param names - names of the columns (may be null)
+         * @throws IOException
+         */
+        public void writeMatrix(String name, double[][] rows, String[] names) throws IOException {
+            int ncol = rows.length == 0 ? 0 : rows[0].length;
+            for (double[] row : rows) {
+                if (row.length != ncol) {
+                    throw new IllegalArgumentException("Rows of " + name + " do not have the same length");
+                }
+            }
+            begin(name, MATRIX);
+            out.writeInt(rows.length);
+            out.writeInt(ncol);
+            for (double[] row : rows) {
+                writeDoubles(row);
+            }
+            end(names);
+        }
+
+        private final byte[] buffer = new byte[8 * 1024];
+
+        private void writeDoubles(double[] values) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buffer);
+            for (double v : values) {
+                if (!bb.hasRemaining()) {
+                    out.write(buffer, 0, bb.position());
+                    bb.clear();
+                }
+                bb.putDouble(v);
+            }
+            out.write(buffer, 0, bb.position());
+        }
+
+        /**
+         * @param name - variable name
+         * @param source - js source of the function
+         * @throws IOException
+         */
+        public void writeFunction(String name, String source) throws IOException {
+            begin(name, FUNCTION);
+            writeText(source);
+            end(null);
+        }
+
+        /**
+         * @param name - variable name
+         * @param json - json of any other value (like lists)
+         * @param names - names of the value, if an array (may be null)
+         * @throws IOException
+         */
+        public void writeJson(String name, String json, String[] names) throws IOException {
+            begin(name, JSON);
+            writeText(json);
+            end(names);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Read variables of a snapshot file, one after the other (see next). The
+     * file is memory mapped, so it is not copied in memory.
+     */
+    public static class Reader implements Closeable {
+
+        private final RandomAccessFile file;
+        private final ByteBuffer buffer;
+
+        private String name;
+        private byte type;
+        private int start;
+
+        /**
+         * @param path - the snapshot file
+         * @throws IOException
+         */
+        public Reader(String path) throws IOException {
+            file = new RandomAccessFile(new File(path), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot " + path + " is too large (" + channel.size() + " bytes)");
+                }
+                if (RserveDaemon.isWindows()) {
+                    // a mapped file cannot be written or deleted until unmapped (by gc) on Windows
+                    buffer = ByteBuffer.allocate((int) channel.size());
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    }
+                    buffer.flip();
+                } else {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                byte[] magic = new byte[MAGIC.length];
+                buffer.get(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException("Not a snapshot: " + path);
+                }
+                int version = buffer.getInt();
+                if (version > VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version + " in " + path);
+                }
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Move to next variable (skipping the value of current one if not
+         * read).
+         *
+         * @return false if no more variable
+         */
+        public boolean next() {
+            if (name != null) {
+                buffer.position(start);
+                skipValue();
+                readNames();
+            }
+            if (!buffer.hasRemaining()) {
+                name = null;
+                return false;
+            }
+            name = readText();
+            type = buffer.get();
+            start = buffer.position();
+            return true;
+        }
+
+        private void skipValue() {
+            switch (type) {
+                case NULL:
+                    break;
+                case NUMBER:
+                    buffer.position(buffer.position() + 8);
+                    break;
+                case BOOLEAN:
+                    buffer.position(buffer.position() + 1);
+                    break;
+                case NUMBERS:
+                    int n = buffer.getInt();
+                    buffer.position(buffer.position() + 8 * n);
+                    break;
+                case MATRIX:
+                    int nrow = buffer.getInt();
+                    int ncol = buffer.getInt();
+                    buffer.position(buffer.position() + 8 * nrow * ncol);
+                    break;
+                default:
+                    int length = buffer.getInt();
+                    buffer.position(buffer.position() + length);
+            }
+        }
+
+        private String readText() {
+            int length = buffer.getInt();
+            byte[] b = new byte[length];
+            buffer.get(b);
+            return new String(b, UTF8);
+        }
+
+        private String[] readNames() {
+            int n = buffer.getInt();
+            if (n < 0) {
+                return null;
+            }
+            String[] s = new String[n];
+            for (int i = 0; i < n; i++) {
+                s[i] = readText();
+            }
+            return s;
+        }
+
+        /**
+         * @return name of current variable
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return type of current variable (NUMBER, STRING, ...)
+         */
+        public byte type() {
+            return type;
+        }
+
+        /**
+         * @return names of the current variable, or null if it has no names
+         */
+        public String[] names() {
+            buffer.position(start);
+            skipValue();
+            return readNames();
+        }
+
+        public double number() {
+            return buffer.getDouble(start);
+        }
+
+        public boolean bool() {
+            return buffer.get(start) != 0;
+        }
+
+        /**
+         * @return text of a STRING, FUNCTION or JSON variable
+         */
+        public String text() {
+            buffer.position(start);
+            return readText();
+        }
+
+        public double[] numbers() {
+            buffer.position(start);
+            double[] x = new double[buffer.getInt()];
+            buffer.asDoubleBuffer().get(x);
+            return x;
+        }
+
+        public double[][] matrix() {
+            buffer.position(start);
+            double[][] x = new double[buffer.getInt()][buffer.getInt()];
+            for (double[] row : x) {
+                buffer.asDoubleBuffer().get(row);
+                buffer.position(buffer.position() + 8 * row.length);
+            }
+            return x;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
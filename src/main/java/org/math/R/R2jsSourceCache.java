@@ -0,0 +1,230 @@
+package org.math.R;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * On-disk cache of the translations of R files evaluated by
+ * R2jsSession.source(), so a script already sourced (by this or a previous
+ * jvm) is evaluated without being translated again.
+ *
+ * A cache file holds the js translation of each statement of the script (and
+ * the variables it declared in the session), and is named by a hash of the
+ * script content, of the names of the session scope it was translated in, and
+ * of the translator classes, including their nested and anonymous classes (so
+ * a new version of the translator does not use previous translations).
+ *
+ * File format: "R2JC" magic, version, number of statements, then for each
+ * statement: R expression, its line in the script, js expression, declared
+ * variables.
+ */
+class R2jsSourceCache {
+
+    private static final byte[] MAGIC = {'R', '2', 'J', 'C'};
+    static final int VERSION = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // classes which define the translation (with their nested and anonymous classes)
+    private static final Class<?>[] TRANSLATOR = {R2jsSession.class, R2jsUtils.class, RFunctionArgumentsDTO.class};
+    private static String translatorVersion;
+
+    private R2jsSourceCache() {
+    }
+
+    /**
+     * Translation of one statement of a script
+     */
+    static class Statement {
+
+        final String r;
+        final int line;
+        final String js;
+        final String[] declaredVariables;
+
+        Statement(String r, int line, String js, String[] declaredVariables) {
+            this.r = r;
+            this.line = line;
+            this.js = js;
+            this.declaredVariables = declaredVariables;
+        }
+    }
+
+    /**
+     * @return hash of the translator classes
+     */
+    static synchronized String translatorVersion() {
+        if (translatorVersion == null) {
+            MessageDigest md = digest();
+            for (Class<?> c : TRANSLATOR) {
+                hashClass(md, c);
+            }
+            translatorVersion = hex(md.digest());
+        }
+        return translatorVersion;
+    }
+
+    // hash the class with its nested classes, and its anonymous classes (named class$1, class$2, ...)
+    private static void hashClass(MessageDigest md, Class<?> c) {
+        hashClass(md, c.getName());
+        for (Class<?> n : c.getDeclaredClasses()) {
+            hashClass(md, n);
+        }
+    }
+
+    private static boolean hashClass(MessageDigest md, String name) {
+        try (InputStream in = R2jsSourceCache.class.getResourceAsStream("/" + name.replace('.', '/') + ".class")) {
+            if (in == null) {
+                return false;
+            }
+            md.update(name.getBytes(UTF8));
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) > 0) {
+                md.update(b, 0, n);
+            }
+        } catch (IOException e) {
+            // not hashed: only the other classes are
+        }
+        for (int i = 1; hashClass(md, name + "$" + i); i++) {
+        }
+        return true;
+    }
+
+    /**
+     * @param dir - cache directory
+     * @param script - the R script
+     * @param scope - names of the scope of the session where the script is
+     * translated (environment, variables and functions)
+     * @return cache file of the script translation (which may not exist)
+     * @throws IOException if the script cannot be read
+     */
+    static File file(File dir, File script, String scope) throws IOException {
+        MessageDigest md = digest();
+        md.update((VERSION + "\n" + translatorVersion() + "\n" + scope + "\n").getBytes(UTF8));
+        try (InputStream in = new FileInputStream(script)) {
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) > 0) {
+                md.update(b, 0, n);
+            }
+        }
+        return new File(dir, hex(md.digest()) + ".r2js");
+    }
+
+    /**
+     * @param file - cache file
+     * @return the statements of the cache file, or null if it does not exist
+     * or cannot be read
+     */
+    static List<Statement> read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                return null;
+            }
+            int n = in.readInt();
+            List<Statement> statements = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                String r = readString(in);
+                int line = in.readInt();
+                String js = readString(in);
+                String[] declared = new String[in.readInt()];
+                for (int j = 0; j < declared.length; j++) {
+                    declared[j] = readString(in);
+                }
+                statements.add(new Statement(r, line, js, declared));
+            }
+            return statements;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the cache file, through a temporary file, so that other sessions
+     * (or jvms) never read an incomplete one.
+     *
+     * @param file - cache file
+     * @param statements - translated statements of the script
+     * @throws IOException
+     */
+    static void write(File file, List<Statement> statements) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(statements.size());
+                for (Statement s : statements) {
+                    writeString(out, s.r);
+                    out.writeInt(s.line);
+                    writeString(out, s.js);
+                    out.writeInt(s.declaredVariables.length);
+                    for (String v : s.declaredVariables) {
+                        writeString(out, v);
+                    }
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    // strings are not written with writeUTF, which is limited to 64KB
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -5,8 +5,18 @@
  */
 package org.math.R;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
 /**
  * 
@@ -24,64 +34,381 @@ public class R2jsUtils {
     public static List<String> parse(String expr) {
         
         List<String> expressions = new ArrayList<>();
+        Parser parser = new Parser(new StringReader(expr));
+        while (parser.hasNext()) {
+            expressions.add(parser.next());
+        }
         
-        int parenthesis = 0; // '(' and ')'
-        int brackets = 0; // '{' and '}'
-        int brackets2 = 0; // '[' and ']'
-
-        String[] lines = expr.split("\n");
-        StringBuilder sb = new StringBuilder();
-        for(String line : lines) {
-            line = line.trim();
-            if(line.startsWith("#")) {
-                // Ignore commented lines
-            } else {
-                char currentChar=0;
-                for (int i = 0; i < line.length(); i++) {
-                    currentChar = line.charAt(i);
-                    if (currentChar == '#') {// Ignore rest of line
-                        line = line.substring(0,i);
-                        break; 
-                    } else if (currentChar == '(') {
-                        parenthesis++;
-                    } else if (currentChar == ')') {
-                        parenthesis--;
-                    } else if (currentChar == '{') {
-                        brackets++;
-                    } else if (currentChar == '}') {
-                        brackets--;
-                    } else if (currentChar == '[') {
-                        brackets2++;
-                    } else if (currentChar == ']') {
-                        brackets2--;
-                    } else if (parenthesis == 0 && brackets == 0 && brackets2 == 0) {
-                        if(currentChar == ';') {
-                            String firstLine = line.substring(0, i+1);
-                            sb.append(firstLine);                            
-                            expressions.add(sb.toString());
-                            sb = new StringBuilder();
-                                                        
-                            String remainder = line.substring(i+1);
-                            line = remainder.trim()+"\n";
-                            i=0;
-                        }
+        return expressions;
+    }
+
+    /**
+     * Parse the expressions of a reader (like parse), reading characters only
+     * when next expressions are needed. So large scripts are not loaded in
+     * memory.
+     *
+     * @param reader - reader of the expressions (closed by the caller)
+     * @return the parser, iterating over inline sub-expressions
+     */
+    public static Parser parse(Reader reader) {
+        return new Parser(reader);
+    }
+
+    /**
+     * Single pass parser of R expressions, splitting them in inline
+     * sub-expressions (see parse) and keeping the position of each one in the
+     * source. Brackets, ';' and '#' in strings are ignored, and comments are
+     * removed.
+     *
+     * Sub-expressions end with a ';' (kept), or with the line if all brackets
+     * are closed. Lines of a sub-expression are trimmed and separated by
+     * ";\n" (nothing if the line ends with ',', '+', '-', '*', '/' or '='). A
+     * sub-expression following a ';' on the same line ends with "\n".
+     */
+    public static class Parser implements Iterator<String> {
+
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int position = 0;
+        private int length = 0;
+
+        private int parenthesis = 0; // '(' and ')'
+        private int brackets = 0; // '{' and '}'
+        private int brackets2 = 0; // '[' and ']'
+        private char quote = 0; // delimiter of the current string
+        private boolean escaped = false; // previous char is a '\' in a string
+        private boolean comment = false;
+        // previous lines of the current sub-expression
+        private final StringBuilder expression = new StringBuilder();
+        // current line of the current sub-expression
+        private final StringBuilder segment = new StringBuilder();
+        // last char of the line, except blanks and comments
+        private char last = 0;
+        // the segment follows a ';' on the same line
+        private boolean remainder = false;
+
+        // position of the current char
+        private int line = 1;
+        private int column = 0;
+        // position of the current sub-expression
+        private int expressionLine;
+        private int expressionColumn;
+
+        private String next;
+        private int nextLine;
+        private int nextColumn;
+        private boolean eof = false;
+
+        // position of the last sub-expression returned
+        private int returnedLine;
+        private int returnedColumn;
+
+        /**
+         * @param reader - reader of the expressions (closed by the caller)
+         */
+        public Parser(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return line (from 1) of the start of the last sub-expression
+         * returned by next()
+         */
+        public int line() {
+            return returnedLine;
+        }
+
+        /**
+         * @return column (from 1) of the start of the last sub-expression
+         * returned by next()
+         */
+        public int column() {
+            return returnedColumn;
+        }
+
+        /**
+         * @return line (from 1) of the start of an unterminated sub-expression
+         * (with unclosed brackets) at the end of the reader, which is ignored,
+         * or 0 if none
+         */
+        public int unterminated() {
+            return eof && next == null && expression.length() > 0 ? expressionLine : 0;
+        }
+
+        /**
+         * @throws UncheckedIOException if the reader fails
+         */
+        @Override
+        public boolean hasNext() {
+            while (next == null && !eof) {
+                if (position == length) {
+                    try {
+                        length = reader.read(buffer);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    position = 0;
+                    if (length < 0) {
+                        length = 0;
+                        eof = true;
+                        endOfLine();
+                        break;
                     }
                 }
-                if(line.trim().length()>0) {
-                    sb.append(line);
-                    if(parenthesis == 0 && brackets == 0 && brackets2 == 0) {
-                        expressions.add(sb.toString());
-                        sb = new StringBuilder();
-                    } else {
-                        if (currentChar!=',' && currentChar!='+' && currentChar!='-' && currentChar!='*' &&currentChar!='/' &&currentChar!='=')
-                        sb.append(";\n");
+                read(buffer[position++]);
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String e = next;
+            next = null;
+            returnedLine = nextLine;
+            returnedColumn = nextColumn;
+            return e;
+        }
+
+        private void read(char c) {
+            column++;
+            if (quote != 0) {
+                segment.append(c);
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                last = c;
+                if (c == '\n') {
+                    line++;
+                    column = 0;
+                }
+                return;
+            }
+            if (c == '\n') {
+                endOfLine();
+                line++;
+                column = 0;
+                return;
+            }
+            if (comment || (segment.length() == 0 && c <= ' ')) {
+                return;
+            }
+            if (c == '#') {// Ignore rest of line
+                comment = true;
+                return;
+            }
+            if (segment.length() == 0 && expression.length() == 0) {
+                expressionLine = line;
+                expressionColumn = column;
+            }
+            segment.append(c);
+            if (c > ' ') {
+                last = c;
+            }
+            switch (c) {
+                case '"':
+                case '\'':
+                case '`':
+                    quote = c;
+                    break;
+                case '(':
+                    parenthesis++;
+                    break;
+                case ')':
+                    parenthesis--;
+                    break;
+                case '{':
+                    brackets++;
+                    break;
+                case '}':
+                    brackets--;
+                    break;
+                case '[':
+                    brackets2++;
+                    break;
+                case ']':
+                    brackets2--;
+                    break;
+                case ';':
+                    if (closed()) {
+                        expression.append(segment);
+                        ready();
+                        segment.setLength(0);
+                        remainder = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private boolean closed() {
+            return parenthesis == 0 && brackets == 0 && brackets2 == 0;
+        }
+
+        private void endOfLine() {
+            comment = false;
+            int n = segment.length();
+            while (n > 0 && segment.charAt(n - 1) <= ' ') {
+                n--;
+            }
+            segment.setLength(n);
+            if (n > 0) {
+                expression.append(segment);
+                if (closed()) {
+                    if (remainder) {
+                        expression.append('\n');
                     }
+                    ready();
+                } else if (last != ',' && last != '+' && last != '-' && last != '*' && last != '/' && last != '=') {
+                    expression.append(";\n");
                 }
             }
+            segment.setLength(0);
+            remainder = false;
+            last = 0;
+        }
+
+        // the current sub-expression is complete (only called when next is null)
+        private void ready() {
+            next = expression.toString();
+            nextLine = expressionLine;
+            nextColumn = expressionColumn;
+            expression.setLength(0);
         }
-        
-        return expressions;
     }
-    
-    
+
+    // Compiled regular expressions, shared by all sessions
+    private static final Map<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
+
+    /**
+     * Get the compiled pattern of a regular expression, compiling it only once.
+     * Should only be used with a bounded set of expressions (not user data).
+     *
+     * @param regex - the regular expression
+     * @return the compiled pattern
+     */
+    public static Pattern pattern(String regex) {
+        return PATTERNS.computeIfAbsent(regex, Pattern::compile);
+    }
+
+    /**
+     * Same as expr.replaceAll(regex, replacement), without compiling regex at
+     * each call.
+     *
+     * @param expr - the expression to modify
+     * @param regex - the regular expression to match
+     * @param replacement - the replacement string (may contain $1, ...)
+     * @return the modified expression
+     */
+    public static String replaceAll(String expr, String regex, String replacement) {
+        return pattern(regex).matcher(expr).replaceAll(replacement);
+    }
+
+    // Same definition of word characters as regexp \b
+    private static boolean isWordChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Rename function calls in one scan of the expression. This is equivalent
+     * to applying expr.replaceAll("(?&lt;!\\.)(\\b)name\\(", "$1newname(") for
+     * all names, as long as no new name is itself renamed.
+     *
+     * @param expr - the expression to modify
+     * @param calls - the new name of each function (without '(')
+     * @return the modified expression
+     */
+    public static String replaceCalls(String expr, Map<String, String> calls) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int n = expr.length();
+        int i = 0;
+        while (i < n) {
+            if (!isWordChar(expr.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < n && isWordChar(expr.charAt(i))) {
+                i++;
+            }
+            if (i < n && expr.charAt(i) == '(' && (start == 0 || expr.charAt(start - 1) != '.')) {
+                String newName = calls.get(expr.substring(start, i));
+                if (newName != null) {
+                    if (sb == null) {
+                        sb = new StringBuilder(n + 64);
+                    }
+                    sb.append(expr, copied, start).append(newName);
+                    copied = i;
+                }
+            }
+        }
+        if (sb == null) {
+            return expr;
+        }
+        return sb.append(expr, copied, n).toString();
+    }
+
+    /**
+     * Prefix words of an expression which are in a set (like variable names),
+     * in one scan of the expression, so in a time independent of the size of
+     * the set. This is equivalent to applying
+     * expr.replaceAll("\\b(?&lt;![\\$\\.])word\\b", prefix + "word") for all
+     * words of the set (which should only contain letters, digits or '_').
+     *
+     * @param expr - the expression to modify
+     * @param words - the words to prefix
+     * @param prefix - the prefix
+     * @return the modified expression
+     */
+    public static String prefixWords(String expr, Set<String> words, String prefix) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int n = expr.length();
+        int i = 0;
+        while (i < n) {
+            if (!isWordChar(expr.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < n && isWordChar(expr.charAt(i))) {
+                i++;
+            }
+            if ((start == 0 || (expr.charAt(start - 1) != '.' && expr.charAt(start - 1) != '$')) && words.contains(expr.substring(start, i))) {
+                if (sb == null) {
+                    sb = new StringBuilder(n + 64);
+                }
+                sb.append(expr, copied, start).append(prefix);
+                copied = start;
+            }
+        }
+        if (sb == null) {
+            return expr;
+        }
+        return sb.append(expr, copied, n).toString();
+    }
+
+    /**
+     * @param s - a string
+     * @return true if s is not empty and only contains letters, digits or '_'
+     */
+    public static boolean isWord(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!isWordChar(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,255 @@
+package org.math.R;
+
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+
+/**
+ * Vector builtins used by R.js in R2jsSession (rep, which, which.min,
+ * which.max, all, any, paste), working on java primitive arrays instead of
+ * interpreted js loops. Each function returns null when its arguments are not
+ * supported (non numeric, mixed types, ...), so R.js falls back to its js
+ * implementation, which gives the reference results.
+ */
+public class R2jsVectors {
+
+    // largest integer exactly represented by a double (and printed the same in js and java)
+    private static final double MAX_INTEGER = 9007199254740992.0;
+
+    private R2jsVectors() {
+    }
+
+    /**
+     * @param x - numeric js array, or number
+     * @param times - number of repetitions
+     * @return rep(x, times), or null if x is not supported
+     */
+    public static double[] rep(Object x, double times) {
+        double[] v = values(x);
+        if (v == null) {
+            return null;
+        }
+        // same count as the js loop: while (i < times*l)
+        double n = times * v.length;
+        int length = n > 0 ? (int) Math.ceil(n) : 0;
+        return repLen(v, length);
+    }
+
+    /**
+     * @param x - numeric js array, or number
+     * @param length - length of the result
+     * @return rep_len(x, length), or null if x is not supported
+     */
+    public static double[] repLen(Object x, double length) {
+        double[] v = values(x);
+        if (v == null) {
+            return null;
+        }
+        return repLen(v, length > 0 ? (int) Math.ceil(length) : 0);
+    }
+
+    private static double[] repLen(double[] v, int length) {
+        double[] r = new double[length];
+        if (v.length == 0) {
+            return r;
+        }
+        for (int i = 0; i < length; i += v.length) {
+            System.arraycopy(v, 0, r, i, Math.min(v.length, length - i));
+        }
+        return r;
+    }
+
+    /**
+     * @param x - js array
+     * @return indices (from 1) of true values of x, or null if x is not an
+     * array
+     */
+    public static double[] which(Object x) {
+        Object[] values = elements(x);
+        if (values == null) {
+            return null;
+        }
+        int n = 0;
+        int[] indices = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (Boolean.TRUE.equals(values[i])) {
+                indices[n++] = i + 1;
+            }
+        }
+        double[] w = new double[n];
+        for (int i = 0; i < n; i++) {
+            w[i] = indices[i];
+        }
+        return w;
+    }
+
+    /**
+     * @param x - numeric js array
+     * @return indices (from 1) of the minimum values of x, or null if x is not
+     * supported
+     */
+    public static double[] whichMin(Object x) {
+        return whichExtremum(x, false);
+    }
+
+    /**
+     * @param x - numeric js array
+     * @return indices (from 1) of the maximum values of x, or null if x is not
+     * supported
+     */
+    public static double[] whichMax(Object x) {
+        return whichExtremum(x, true);
+    }
+
+    // same comparisons as the js implementation (including NaN values)
+    private static double[] whichExtremum(Object x, boolean max) {
+        double[] v = x instanceof ScriptObjectMirror ? R2jsSession.toDoubles((ScriptObjectMirror) x) : null;
+        if (v == null || v.length == 0) {
+            return null;
+        }
+        int n = 1;
+        int[] indices = new int[v.length];
+        indices[0] = 1;
+        double m = v[0];
+        for (int i = 1; i < v.length; i++) {
+            if (v[i] == m) {
+                indices[n++] = i + 1;
+            } else if (max ? v[i] > m : v[i] < m) {
+                n = 0;
+                indices[n++] = i + 1;
+                m = v[i];
+            }
+        }
+        double[] w = new double[n];
+        for (int i = 0; i < n; i++) {
+            w[i] = indices[i];
+        }
+        return w;
+    }
+
+    /**
+     * @param x - js array of logicals
+     * @return true if all values are true, false if not, or null if x is
+     * not an array of logicals
+     */
+    public static Boolean all(Object x) {
+        boolean[] b = logicals(x);
+        if (b == null) {
+            return null;
+        }
+        for (boolean v : b) {
+            if (!v) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param x - js array of logicals
+     * @return true if one value is true, false if not, or null if x is not
+     * an array of logicals
+     */
+    public static Boolean any(Object x) {
+        boolean[] b = logicals(x);
+        if (b == null) {
+            return null;
+        }
+        for (boolean v : b) {
+            if (v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param sep - separator of arguments
+     * @param collapse - separator of results
+     * @param args - js array of arguments: strings, logicals or integers, or
+     * js arrays of them
+     * @return paste(args, sep, collapse), or null if args are not supported
+     */
+    public static String paste(String sep, String collapse, Object args) {
+        if (!(args instanceof ScriptObjectMirror) || !((ScriptObjectMirror) args).isArray()) {
+            return null;
+        }
+        ScriptObjectMirror a = (ScriptObjectMirror) args;
+        String[][] strings = new String[((Number) a.getMember("length")).intValue()][];
+        int n = 1;
+        for (int i = 0; i < strings.length; i++) {
+            Object ai = a.getSlot(i); // not copied with to(Object[].class), as the engine would not wrap arrays
+            Object[] values = ai instanceof ScriptObjectMirror ? elements(ai) : new Object[]{ai};
+            if (values == null || values.length == 0) {
+                return null;
+            }
+            strings[i] = new String[values.length];
+            for (int j = 0; j < values.length; j++) {
+                if ((strings[i][j] = asString(values[j])) == null) {
+                    return null;
+                }
+            }
+            n = Math.max(n, values.length);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(collapse);
+            }
+            for (int j = 0; j < strings.length; j++) {
+                if (j > 0) {
+                    sb.append(sep);
+                }
+                sb.append(strings[j][i % strings[j].length]);
+            }
+        }
+        return sb.toString();
+    }
+
+    // values as printed by js, or null if they may be printed differently by java
+    private static String asString(Object o) {
+        if (o instanceof CharSequence || o instanceof Boolean) {
+            return o.toString();
+        } else if (o instanceof Integer) {
+            return o.toString();
+        } else if (o instanceof Number) {
+            double d = ((Number) o).doubleValue();
+            if (d == Math.rint(d) && Math.abs(d) <= MAX_INTEGER && !(d == 0 && 1 / d < 0)) {
+                return Long.toString((long) d);
+            }
+        }
+        return null;
+    }
+
+    // numbers of a js array or a number, or null
+    private static double[] values(Object x) {
+        if (x instanceof Number) {
+            return new double[]{((Number) x).doubleValue()};
+        } else if (x instanceof ScriptObjectMirror) {
+            return R2jsSession.toDoubles((ScriptObjectMirror) x);
+        }
+        return null;
+    }
+
+    // elements of a js array (without named properties), or null
+    private static Object[] elements(Object x) {
+        if (!(x instanceof ScriptObjectMirror) || !((ScriptObjectMirror) x).isArray()) {
+            return null;
+        }
+        return ((ScriptObjectMirror) x).to(Object[].class);
+    }
+
+    // logicals of a js array, or null
+    private static boolean[] logicals(Object x) {
+        Object[] values = elements(x);
+        if (values == null) {
+            return null;
+        }
+        boolean[] b = new boolean[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (!(values[i] instanceof Boolean)) {
+                return null;
+            }
+            b[i] = (Boolean) values[i];
+        }
+        return b;
+    }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -177,8 +178,6 @@ public class RserveSession extends Rsession implements RLog {
 
         RserveConf = serverconf;
 
-        // Make sink file specific to current Rserve instance
-        SINK_FILE = "./rout.txt";//+SINK_FILE_BASE + "-" + (serverconf == null ? 0 : serverconf.port);
         try {
             startup();
         } catch (Exception ex) {
@@ -254,6 +253,65 @@ public class RserveSession extends Rsession implements RLog {
         } else {
             status = STATUS_READY;
         }
+
+        R.voidEval(CAPTURE_FUNCTION);
+    }
+
+    /**
+     * R function evaluating an expression with its output and messages sunk
+     * to in-memory text connections (so nothing is written on Rserve disk, and
+     * sessions sharing a working directory do not share a sink file). It
+     * returns list(value, error, output, message), so they all come back in
+     * one call. Defined once per session in an attached environment, so it is
+     * not removed by rmAll().
+     */
+    static final String CAPTURE_FUNCTION = "if (!('rsession' %in% search())) local({\n"
+            + " assign('.rsession.eval', function(.expr, .try, .output, .message, .value) {\n"
+            + "  .out <- character(0); .msg <- character(0)\n"
+            + "  if (.output) { .o <- textConnection('.out', 'w', local = TRUE); sink(.o) }\n"
+            + "  if (.message) { .m <- textConnection('.msg', 'w', local = TRUE); sink(.m, type = 'message') }\n"
+            + "  .r <- tryCatch(list(if (.try) try(eval(parse(text = .expr), envir = .GlobalEnv), silent = FALSE) else eval(parse(text = .expr), envir = .GlobalEnv)),\n"
+            + "                 error = function(err) err,\n"
+            + "                 finally = {\n"
+            + "                  if (.message) { sink(type = 'message'); close(.m) }\n"
+            + "                  if (.output) { sink(); close(.o) }\n"
+            + "                 })\n"
+            + "  .failed <- inherits(.r, 'error')\n"
+            + "  list(if (!.failed && (.value || inherits(.r[[1]], 'try-error'))) .r[[1]] else NULL, if (.failed) conditionMessage(.r) else NULL, paste(.out, collapse = '\\n'), paste(.msg, collapse = '\\n'))\n"
+            + " }, envir = attach(NULL, name = 'rsession'))\n"
+            + "})";
+
+    /**
+     * Evaluate expression with CAPTURE_FUNCTION, and keep (and log) its
+     * output and messages.
+     *
+     * @param expression R expression to evaluate
+     * @param tryEval encapsulate command in try() to cacth errors
+     * @param value return the value of expression (else only try() errors)
+     * @return REXP value of expression
+     * @throws RException if expression failed (and not tryEval)
+     */
+    private REXP capturedEval(String expression, boolean tryEval, boolean value) throws RException, REngineException, REXPMismatchException {
+        RList r = R.parseAndEval(".rsession.eval(" + toRString(expression) + ", " + toRBoolean(tryEval) + ", "
+                + toRBoolean(SINK_OUTPUT) + ", " + toRBoolean(SINK_MESSAGE) + ", " + toRBoolean(value) + ")").asList();
+        if (SINK_OUTPUT) {
+            lastOuput = ((REXP) r.get(2)).asString();
+            log(lastOuput, Level.OUTPUT);
+        }
+        if (SINK_MESSAGE) {
+            lastMessage = ((REXP) r.get(3)).asString();
+            log(lastMessage, Level.INFO);
+        }
+        REXP error = (REXP) r.get(1);
+        if (error != null && !error.isNull()) {
+            throw new RException(error.asString());
+        }
+        REXP e = (REXP) r.get(0);
+        return e == null || e.isNull() ? null : e;
+    }
+
+    private static String toRBoolean(boolean b) {
+        return b ? "TRUE" : "FALSE";
     }
 
     /**
@@ -320,61 +378,18 @@ public class RserveSession extends Rsession implements RLog {
             b.eval(expression);
         }
         REXP e = null;
-        //synchronized (R) {
         try {
-            if (SINK_OUTPUT) {
-                R.eval(".f <- file('" + (SINK_FILE) + "',open='wt')");
-                R.eval("sink(.f,type='output')");
-            }
-            if (SINK_MESSAGE) {
-                R.eval(".fm <- file('" + (SINK_FILE) + ".m',open='wt')");
-                R.eval("sink(.fm,type='message')");
-            }
-            if (tryEval) {
-                e = R.parseAndEval("try(eval(parse(text='" + expression.replace("'", "\\'") + "')),silent=FALSE)");
+            if (SINK_OUTPUT || SINK_MESSAGE) {
+                e = capturedEval(expression, tryEval, false);
+            } else if (tryEval) {
+                e = R.parseAndEval("try(eval(parse(text=" + toRString(expression) + ")),silent=FALSE)");
             } else {
                 e = R.parseAndEval(expression);
             }
         } catch (Exception ex) {
             log(HEAD_EXCEPTION + ex.getMessage() + "\n  " + expression, Level.ERROR);
             return false;
-        } finally {
-            if (SINK_OUTPUT) {
-                try {
-                    R.parseAndEval("sink(type='output')");
-                    lastOuput = R.parseAndEval("paste(collapse='\n',readLines('" + (SINK_FILE) + "'))").asString();
-                    log(lastOuput, Level.OUTPUT);
-                } catch (Exception ex) {
-                    lastOuput = ex.getMessage();
-                    log(lastOuput, Level.WARNING);
-                } finally {
-                    try {
-                        R.eval("close(.f)"); // because Renjin.sink() do not properly closeLog connection, so calling it explicitely
-                        R.parseAndEval("unlink('" + (SINK_FILE) + "')");
-                    } catch (Exception ex) {
-                        log(ex.getMessage(), Level.ERROR);
-                    }
-                }
-            }
-            if (SINK_MESSAGE) {
-                try {
-                    R.parseAndEval("sink(type='message')");
-                    lastMessage = R.parseAndEval("paste(collapse='\n',readLines('" + (SINK_FILE) + ".m'))").asString();
-                    log(lastMessage, Level.INFO);
-                } catch (Exception ex) {
-                    lastMessage = ex.getMessage();
-                    log(lastMessage, Level.WARNING);
-                } finally {
-                    try {
-                        R.eval("close(.fm)"); // because Renjin.sink() do not properly closeLog connection, so calling it explicitely
-                        R.parseAndEval("unlink('" + (SINK_FILE) + ".m')");
-                    } catch (Exception ex) {
-                        log(ex.getMessage(), Level.ERROR);
-                    }
-                }
-            }
         }
-        //}
 
         if (tryEval && e != null) {
             try {
@@ -414,61 +429,18 @@ public class RserveSession extends Rsession implements RLog {
             b.eval(expression);
         }
         Object e = null;
-        //synchronized (R) {
         try {
-            if (SINK_OUTPUT) {
-                R.eval(".f <- file('" + (SINK_FILE) + "',open='wt')");
-                R.eval("sink(.f,type='output')");
-            }
-            if (SINK_MESSAGE) {
-                R.eval(".fm <- file('" + (SINK_FILE) + ".m',open='wt')");
-                R.eval("sink(.fm,type='message')");
-            }
-            if (tryEval) {
-                e = R.parseAndEval("try(eval(parse(text='" + expression.replace("'", "\\'") + "')),silent=FALSE)");
+            if (SINK_OUTPUT || SINK_MESSAGE) {
+                e = capturedEval(expression, tryEval, true);
+            } else if (tryEval) {
+                e = R.parseAndEval("try(eval(parse(text=" + toRString(expression) + ")),silent=FALSE)");
             } else {
                 e = R.parseAndEval(expression);
             }
         } catch (Exception ex) {
             log(HEAD_EXCEPTION + ex.getMessage() + "\n  " + expression, Level.ERROR);
             return new RException(HEAD_EXCEPTION + ex.getMessage() + "\n  " + expression);
-        } finally {
-            if (SINK_OUTPUT) {
-                try {
-                    R.parseAndEval("sink(type='output')");
-                    lastOuput = R.parseAndEval("paste(collapse='\n',readLines('" + (SINK_FILE) + "'))").asString();
-                    log(lastOuput, Level.OUTPUT);
-                } catch (Exception ex) {
-                    lastOuput = ex.getMessage();
-                    log(lastOuput, Level.WARNING);
-                } finally {
-                    try {
-                        R.eval("close(.f)"); // because Renjin.sink() do not properly closeLog connection, so calling it explicitely
-                        R.parseAndEval("unlink('" + (SINK_FILE) + "')");
-                    } catch (Exception ex) {
-                        log(HEAD_EXCEPTION + ex.getMessage(), Level.ERROR);
-                    }
-                }
-            }
-            if (SINK_MESSAGE) {
-                try {
-                    R.parseAndEval("sink(type='message')");
-                    lastMessage = R.parseAndEval("paste(collapse='\n',readLines('" + (SINK_FILE) + ".m'))").asString();
-                    log(lastMessage, Level.INFO);
-                } catch (Exception ex) {
-                    lastMessage = ex.getMessage();
-                    log(lastMessage, Level.WARNING);
-                } finally {
-                    try {
-                        R.eval("close(.fm)"); // because Renjin.sink() do not properly closeLog connection, so calling it explicitely
-                        R.parseAndEval("unlink('" + (SINK_FILE) + ".m')");
-                    } catch (Exception ex) {
-                        log(HEAD_EXCEPTION + ex.getMessage(), Level.ERROR);
-                    }
-                }
-            }
         }
-        //}
 
         if (tryEval && e != null) {
             try {
@@ -484,6 +456,171 @@ public class RserveSession extends Rsession implements RLog {
         return e;
     }
 
+    /**
+     * Result of one expression of evalBatch
+     */
+    public static class BatchResult {
+
+        /**
+         * R expression evaluated
+         */
+        public final String expression;
+        /**
+         * Value of the expression if visible (as printed by R console) and
+         * data (vector, matrix, list, ...), else null (like for assignments or
+         * functions)
+         */
+        public final Object value;
+        /**
+         * Output printed while evaluating the expression
+         */
+        public final String output;
+        /**
+         * Messages printed while evaluating the expression
+         */
+        public final String message;
+        /**
+         * Error message, or null if the expression was evaluated
+         */
+        public final String error;
+
+        BatchResult(String expression, Object value, String output, String message, String error) {
+            this.expression = expression;
+            this.value = value;
+            this.output = output;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Evaluate R expressions in one call to Rserve (instead of several calls
+     * by expression with voidEval or eval, when output and messages are
+     * captured). Output and messages of each expression are always captured.
+     * Expressions are logged and noted in notebook as with voidEval.
+     *
+     * @param expressions R expressions to evaluate
+     * @param stopOnError do not evaluate expressions following an error
+     * @return results of the evaluated expressions (so without the ones
+     * following an error if stopOnError)
+     * @throws org.math.R.Rsession.RException Could not call Rserve
+     */
+    public synchronized List<BatchResult> evalBatch(List<String> expressions, boolean stopOnError) throws RException {
+        if (!connected) {
+            log(HEAD_EXCEPTION + "R environment not initialized.", Level.ERROR);
+            throw new RException(HEAD_EXCEPTION + "R environment not initialized.");
+        }
+        List<BatchResult> results = new ArrayList<>(expressions.size());
+        if (expressions.isEmpty()) {
+            return results;
+        }
+        StringBuilder exprs = new StringBuilder();
+        for (String expression : expressions) {
+            log(HEAD_EVAL + expression, Level.INFO);
+            note_code(expression);
+            for (EvalListener b : eval) {
+                b.eval(expression);
+            }
+            exprs.append(exprs.length() == 0 ? "" : ",").append(toRString(expression));
+        }
+        // each result is list(value, error, output, message)
+        String batch = "local({\n"
+                + " .results <- list()\n"
+                + " for (.e in c(" + exprs + ")) {\n"
+                + "  .out <- character(0); .msg <- character(0)\n"
+                + "  .o <- textConnection('.out', 'w', local = TRUE); .m <- textConnection('.msg', 'w', local = TRUE)\n"
+                + "  sink(.o); sink(.m, type = 'message')\n"
+                + "  .r <- tryCatch(withVisible(eval(parse(text = .e), envir = .GlobalEnv)), error = function(err) err)\n"
+                + "  sink(type = 'message'); sink(); close(.o); close(.m)\n"
+                + "  .failed <- inherits(.r, 'error')\n"
+                + "  .results[[length(.results) + 1]] <- list(if (!.failed && .r$visible && (is.atomic(.r$value) || is.list(.r$value))) .r$value else NULL, if (.failed) conditionMessage(.r) else NULL, paste(.out, collapse = '\\n'), paste(.msg, collapse = '\\n'))\n"
+                + "  if (.failed && " + (stopOnError ? "TRUE" : "FALSE") + ") break\n"
+                + " }\n"
+                + " .results\n"
+                + "})";
+
+        RList list;
+        try {
+            list = R.parseAndEval(batch).asList();
+        } catch (Exception ex) {
+            log(HEAD_EXCEPTION + ex.getMessage(), Level.ERROR);
+            throw new RException(HEAD_EXCEPTION + ex.getMessage());
+        }
+
+        for (int i = 0; i < list.size(); i++) {
+            String expression = expressions.get(i);
+            try {
+                RList r = ((REXP) list.get(i)).asList();
+                REXP value = (REXP) r.get(0);
+                REXP error = (REXP) r.get(1);
+                BatchResult result = new BatchResult(expression,
+                        value == null || value.isNull() ? null : cast(value),
+                        ((REXP) r.get(2)).asString(),
+                        ((REXP) r.get(3)).asString(),
+                        error == null || error.isNull() ? null : error.asString());
+                lastOuput = result.output;
+                lastMessage = result.message;
+                log(result.output, Level.OUTPUT);
+                log(result.message, Level.INFO);
+                if (result.error != null) {
+                    log(HEAD_EXCEPTION + result.error + "\n  " + expression, Level.WARNING);
+                    note_text("Failed to evaluate " + expression);
+                } else if (result.value != null) {
+                    log("  " + toString(value), Level.INFO);
+                }
+                results.add(result);
+            } catch (REXPMismatchException ex) {
+                log(HEAD_ERROR + ex.getMessage() + "\n  " + expression, Level.ERROR);
+                throw new RException(HEAD_ERROR + ex.getMessage() + "\n  " + expression);
+            }
+        }
+
+        for (UpdateObjectsListener b : updateObjects) {
+            b.update();
+        }
+        return results;
+    }
+
+    /**
+     * Evaluate R expressions in one call to Rserve, even if some fail (see
+     * evalBatch(List, boolean)).
+     *
+     * @param expressions R expressions to evaluate
+     * @return results of the expressions
+     * @throws org.math.R.Rsession.RException Could not call Rserve
+     */
+    public List<BatchResult> evalBatch(List<String> expressions) throws RException {
+        return evalBatch(expressions, false);
+    }
+
+    // R string literal of a java string
+    static String toRString(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('\'');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\'':
+                    sb.append("\\'");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.append('\'').toString();
+    }
+
     public String getRServeOS() {
         String os = asString(rawEval("Sys.info()['sysname']", TRY_MODE));
         return (os == null ? "NA" : os);
@@ -680,35 +817,23 @@ public class RserveSession extends Rsession implements RLog {
             }
             return silentlyVoidEval(varname/*, cat((double[]) var)*/);
         } else if (var instanceof Double[][]) {
-            Double[][] array = (Double[][]) var;
-            int rows = array.length;
-            int col = array[0].length;
             try {
                 //synchronized (R) {
-                R.assign("row_" + varname, reshapeAsRow(array));
+                R.assign(varname, asRMatrix((Double[][]) var));
                 //}
-            } catch (REngineException ex) {
-                log(HEAD_ERROR + ex.getMessage() + "\n  set(String varname=" + varname + ",Object (double[][]) var)", Level.ERROR);
+            } catch (RserveException ex) {
+                log(HEAD_EXCEPTION + ex.getMessage() + "\n  set(String varname=" + varname + ",Object (Double[][]) var)", Level.ERROR);
                 return false;
             }
-            //eval("print(row_" + varname + ")");
-            boolean done = silentlyVoidEval(varname + "<-array(row_" + varname + ",c(" + rows + "," + col + "))");
-            return done && silentlyVoidEval("rm(row_" + varname + ")");
         } else if (var instanceof double[][]) {
-            double[][] array = (double[][]) var;
-            int rows = array.length;
-            int col = array[0].length;
             try {
                 //synchronized (R) {
-                R.assign("row_" + varname, reshapeAsRow(array));
+                R.assign(varname, asRMatrix((double[][]) var));
                 //}
-            } catch (REngineException ex) {
-                log(HEAD_ERROR + ex.getMessage() + "\n  set(String varname=" + varname + ",Object (double[][]) var)", Level.ERROR);
+            } catch (RserveException ex) {
+                log(HEAD_EXCEPTION + ex.getMessage() + "\n  set(String varname=" + varname + ",Object (double[][]) var)", Level.ERROR);
                 return false;
             }
-            //eval("print(row_" + varname + ")");
-            boolean done = silentlyVoidEval(varname + "<-array(row_" + varname + ",c(" + rows + "," + col + "))");
-            return done && silentlyVoidEval("rm(row_" + varname + ")");
         } else if (var instanceof String) {
             try {
                 //synchronized (R) {
@@ -745,6 +870,50 @@ public class RserveSession extends Rsession implements RLog {
         return true;
     }
 
+    /**
+     * Build R matrix (numeric vector with dim attribute), so it is set in one
+     * assign, without reshaping it in R.
+     *
+     * @param a matrix as an array of rows
+     * @return REXPDouble object, filled in column-major order (as stored by R)
+     */
+    static REXPDouble asRMatrix(double[][] a) {
+        int rows = a.length;
+        int cols = rows == 0 ? 0 : a[0].length;
+        double[] values = new double[rows * cols];
+        for (int i = 0; i < rows; i++) {
+            double[] row = a[i];
+            for (int j = 0, k = i; j < cols; j++, k += rows) {
+                values[k] = row[j];
+            }
+        }
+        return new REXPDouble(values, dim(rows, cols));
+    }
+
+    /**
+     * Build R matrix (numeric vector with dim attribute), so it is set in one
+     * assign, without reshaping it in R.
+     *
+     * @param a matrix as an array of rows (null values are NA)
+     * @return REXPDouble object, filled in column-major order (as stored by R)
+     */
+    static REXPDouble asRMatrix(Double[][] a) {
+        int rows = a.length;
+        int cols = rows == 0 ? 0 : a[0].length;
+        double[] values = new double[rows * cols];
+        for (int i = 0; i < rows; i++) {
+            Double[] row = a[i];
+            for (int j = 0, k = i; j < cols; j++, k += rows) {
+                values[k] = row[j] == null ? REXPDouble.NA : row[j];
+            }
+        }
+        return new REXPDouble(values, dim(rows, cols));
+    }
+
+    private static REXPList dim(int rows, int cols) {
+        return new REXPList(new RList(new REXP[]{new REXPInteger(new int[]{rows, cols})}, new String[]{"dim"}));
+    }
+
     public static REXPList asRList(Map m) {
         RList l = new RList();
         for (Object o : m.keySet()) {
@@ -1425,6 +1594,18 @@ public class RserveSession extends Rsession implements RLog {
         System.out.println(R.notebook());
     }
 
+    /**
+     * Reset the R session to a clean state, as just started: remove all
+     * variables (including hidden ones, so saved environments), and use the
+     * default environment again.
+     *
+     * @return well reset ?
+     */
+    public boolean reset() {
+        envName = ENVIRONMENT_DEFAULT;
+        return rmAll(true);
+    }
+
     @Override
     public void setGlobalEnv(String envName) {
         if (envName == null) {
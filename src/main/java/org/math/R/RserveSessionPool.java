@@ -0,0 +1,501 @@
+package org.math.R;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.math.R.RLog.Level;
+import org.math.R.Rsession.RException;
+
+/**
+ * Pool of connected RserveSession, spread over one or more Rserve servers (or
+ * local Rserve daemons spawned by the sessions), so that sessions are reused
+ * instead of being started and connected for each use:
+ * <pre>
+ * RserveSession s = pool.checkout();
+ * try {
+ *     s.eval(...);
+ * } finally {
+ *     pool.release(s);
+ * }
+ * </pre>
+ *
+ * Released sessions are reset (see RserveSession.reset), so next users get a
+ * clean R environment. Idle sessions are checked (by a trivial evaluation)
+ * before being used again after idleCheckTime, and may be checked
+ * periodically (see setIdleCheckPeriod). Broken sessions are ended and
+ * replaced by new ones.
+ */
+public class RserveSessionPool {
+
+    /**
+     * Maximum number of sessions (idle or checked out)
+     */
+    public int maxSize;
+    /**
+     * Maximum time to wait for a session in checkout, when maxSize sessions
+     * are checked out (ms)
+     */
+    public long waitTimeout = 10000;
+    /**
+     * Idle sessions unused for longer than this time are checked before being
+     * checked out (ms, negative to never check)
+     */
+    public long idleCheckTime = 60000;
+    /**
+     * Reset sessions when released (see RserveSession.reset)
+     */
+    public boolean resetOnRelease = true;
+
+    private final RLog console;
+    private final Properties properties;
+    // servers of sessions (null for local Rserve daemons)
+    private final List<RserverConf> servers;
+
+    /**
+     * Session of the pool
+     */
+    private static class Pooled {
+
+        final RserveSession session;
+        // index of the server of the session
+        final int server;
+        long lastUsed = System.currentTimeMillis();
+
+        Pooled(RserveSession session, int server) {
+            this.session = session;
+            this.server = server;
+        }
+    }
+
+    // idle sessions, most recently used first
+    private final LinkedList<Pooled> idle = new LinkedList<>();
+    private final Map<RserveSession, Pooled> busy = new HashMap<>();
+    // idle sessions being checked by checkIdle (neither given nor replaced meanwhile)
+    private final Map<RserveSession, Pooled> checking = new HashMap<>();
+    // sessions being created, by server
+    private final int[] starting;
+    private boolean closed = false;
+    private Timer idleChecks;
+
+    // metrics
+    private long checkouts = 0;
+    private long checkoutTime = 0; // ns
+    private long maxCheckoutTime = 0; // ns
+    private long timeouts = 0;
+    private long created = 0;
+    private long discarded = 0;
+    private int maxBusy = 0;
+
+    /**
+     * Create a pool of sessions connected to some Rserve servers. Sessions
+     * are created when needed (see checkout), or in advance (see fill), on the
+     * server with the least sessions.
+     *
+     * @param console - logger of the sessions and of the pool
+     * @param properties - env variables to setup at R sessions startup (like
+     * http_proxy), may be null
+     * @param maxSize - maximum number of sessions
+     * @param servers - servers of the sessions (a null server starts a local
+     * Rserve daemon for each session, as RserveSession), no server is same as
+     * a null server
+     */
+    public RserveSessionPool(RLog console, Properties properties, int maxSize, RserverConf... servers) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool size should be positive: " + maxSize);
+        }
+        this.console = console;
+        this.properties = properties;
+        this.maxSize = maxSize;
+        this.servers = servers == null || servers.length == 0 ? Arrays.asList((RserverConf) null) : Arrays.asList(servers);
+        this.starting = new int[this.servers.size()];
+    }
+
+    /**
+     * Create a new session (not yet in the pool) on a server. May be
+     * overloaded to configure the sessions.
+     *
+     * @param server - the server (null for a local Rserve daemon)
+     * @return the session (which may not be available, if it could not
+     * connect)
+     */
+    protected RserveSession newSession(RserverConf server) {
+        // each session has its own conf, as it stores the connection
+        RserverConf conf = server == null ? null : new RserverConf(server.host, server.port, server.login, server.password);
+        return new RserveSession(console, properties, conf);
+    }
+
+    /**
+     * Check that a session still works. May be overloaded to check other
+     * features of the sessions.
+     *
+     * @param s - the session
+     * @return true if the session can be used
+     */
+    protected boolean isHealthy(RserveSession s) {
+        if (!s.isAvailable()) {
+            return false;
+        }
+        try {
+            return s.asLogical(s.silentlyRawEval("TRUE", false));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get a session from the pool: an idle one if any, else a new one if the
+     * pool has less than maxSize sessions, else the first one released before
+     * waitTimeout. The session should be given back with release.
+     *
+     * @return the session
+     * @throws RException if no session is available before waitTimeout, or if
+     * a new session could not connect
+     */
+    public RserveSession checkout() throws RException {
+        long start = System.nanoTime();
+        long deadline = start + waitTimeout * 1000000;
+        while (true) {
+            Pooled p = null;
+            int server = -1;
+            synchronized (this) {
+                while (p == null && server < 0) {
+                    if (closed) {
+                        throw new RException("Pool of sessions is closed");
+                    }
+                    if (!idle.isEmpty()) {
+                        p = idle.removeFirst();
+                        busy.put(p.session, p);
+                    } else if (size() < maxSize) {
+                        server = leastLoadedServer();
+                        starting[server]++;
+                    } else {
+                        long wait = (deadline - System.nanoTime() + 999999) / 1000000;
+                        if (wait <= 0) {
+                            timeouts++;
+                            throw new RException("No session available in pool after " + waitTimeout + " ms (" + busy.size() + " sessions checked out)");
+                        }
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RException("Interrupted while waiting for a session in pool");
+                        }
+                    }
+                }
+            }
+
+            if (p != null) {
+                if (idleCheckTime >= 0 && System.currentTimeMillis() - p.lastUsed > idleCheckTime && !isHealthy(p.session)) {
+                    console.log("Discarding broken session of pool: " + p.session.RserveConf, Level.WARNING);
+                    discard(p);
+                    continue;
+                }
+            } else {
+                p = start(server);
+                synchronized (this) {
+                    busy.put(p.session, p);
+                }
+            }
+            synchronized (this) {
+                long time = System.nanoTime() - start;
+                checkouts++;
+                checkoutTime += time;
+                maxCheckoutTime = Math.max(maxCheckoutTime, time);
+                maxBusy = Math.max(maxBusy, busy.size());
+            }
+            return p.session;
+        }
+    }
+
+    /**
+     * Give back a session to the pool, once it is no more used. The session
+     * is reset (if resetOnRelease), and will be given to next checkouts.
+     *
+     * @param s - the session, given by checkout
+     */
+    public void release(RserveSession s) {
+        Pooled p;
+        synchronized (this) {
+            p = busy.remove(s);
+        }
+        if (p == null) {
+            throw new IllegalArgumentException("Session was not checked out from this pool");
+        }
+        boolean ok = s.isAvailable() && (!resetOnRelease || s.reset());
+        if (!ok) {
+            console.log("Discarding session of pool which could not be reset: " + s.RserveConf, Level.WARNING);
+            discard(p);
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                p.lastUsed = System.currentTimeMillis();
+                idle.addFirst(p);
+                notifyAll();
+                return;
+            }
+        }
+        s.end();
+    }
+
+    /**
+     * Start sessions, so that the pool has at least n sessions (or maxSize).
+     *
+     * @param n - number of sessions
+     * @throws RException if a session could not connect
+     */
+    public void fill(int n) throws RException {
+        while (true) {
+            int server;
+            synchronized (this) {
+                if (closed || size() >= Math.min(n, maxSize)) {
+                    return;
+                }
+                server = leastLoadedServer();
+                starting[server]++;
+            }
+            Pooled p = start(server);
+            synchronized (this) {
+                idle.addLast(p);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Check all idle sessions now, replacing broken ones by new sessions.
+     */
+    public void checkIdle() {
+        List<Pooled> check;
+        synchronized (this) {
+            check = new ArrayList<>(idle);
+            idle.removeAll(check);
+            for (Pooled p : check) {
+                checking.put(p.session, p);
+            }
+        }
+        int broken = 0;
+        for (Pooled p : check) {
+            if (isHealthy(p.session)) {
+                synchronized (this) {
+                    checking.remove(p.session);
+                    p.lastUsed = System.currentTimeMillis();
+                    if (closed) {
+                        p.session.end();
+                    } else {
+                        idle.addLast(p);
+                        notifyAll();
+                    }
+                }
+            } else {
+                console.log("Discarding broken session of pool: " + p.session.RserveConf, Level.WARNING);
+                discard(p);
+                broken++;
+            }
+        }
+        if (broken > 0) {
+            int n;
+            synchronized (this) {
+                // replace broken sessions, whatever the number of sessions checked out
+                n = size() + broken;
+            }
+            try {
+                fill(n);
+            } catch (RException e) {
+                console.log("Could not replace broken sessions of pool: " + e.getMessage(), Level.ERROR);
+            }
+        }
+    }
+
+    /**
+     * Check idle sessions periodically (see checkIdle), in a background
+     * thread.
+     *
+     * @param period - time between checks (ms), or 0 to stop checks
+     */
+    public synchronized void setIdleCheckPeriod(long period) {
+        if (idleChecks != null) {
+            idleChecks.cancel();
+            idleChecks = null;
+        }
+        if (period > 0 && !closed) {
+            idleChecks = new Timer("RserveSessionPool idle checks", true);
+            idleChecks.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    checkIdle();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * End all idle sessions, and sessions checked out once released. Next
+     * checkouts will fail.
+     */
+    public void close() {
+        List<Pooled> ended;
+        synchronized (this) {
+            closed = true;
+            setIdleCheckPeriod(0);
+            ended = new ArrayList<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (Pooled p : ended) {
+            p.session.end();
+        }
+    }
+
+    // start a new session on a server, whose starting count was incremented
+    private Pooled start(int server) throws RException {
+        RserveSession s = null;
+        try {
+            s = newSession(servers.get(server));
+        } finally {
+            synchronized (this) {
+                starting[server]--;
+                if (s == null || !s.isAvailable()) {
+                    // another thread may start a session instead
+                    notifyAll();
+                }
+            }
+        }
+        if (!s.isAvailable()) {
+            s.end();
+            throw new RException("Could not start session of pool on " + (servers.get(server) == null ? "local Rserve" : servers.get(server)) + ": " + s.getStatus());
+        }
+        synchronized (this) {
+            created++;
+        }
+        return new Pooled(s, server);
+    }
+
+    // end a broken session (removed from idle)
+    private void discard(Pooled p) {
+        synchronized (this) {
+            busy.remove(p.session);
+            checking.remove(p.session);
+            discarded++;
+            notifyAll();
+        }
+        p.session.end();
+    }
+
+    // should be called with lock on this
+    private int leastLoadedServer() {
+        int[] load = starting.clone();
+        for (Pooled p : idle) {
+            load[p.server]++;
+        }
+        for (Pooled p : busy.values()) {
+            load[p.server]++;
+        }
+        for (Pooled p : checking.values()) {
+            load[p.server]++;
+        }
+        int server = 0;
+        for (int i = 1; i < load.length; i++) {
+            if (load[i] < load[server]) {
+                server = i;
+            }
+        }
+        return server;
+    }
+
+    /**
+     * @return number of sessions (idle, being checked, checked out or
+     * starting)
+     */
+    public synchronized int size() {
+        int n = idle.size() + checking.size() + busy.size();
+        for (int s : starting) {
+            n += s;
+        }
+        return n;
+    }
+
+    /**
+     * @return number of idle sessions
+     */
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return number of sessions checked out
+     */
+    public synchronized int getBusy() {
+        return busy.size();
+    }
+
+    /**
+     * @return ratio of sessions checked out to maxSize
+     */
+    public synchronized double getUtilisation() {
+        return (double) busy.size() / maxSize;
+    }
+
+    /**
+     * @return largest number of sessions checked out at the same time
+     */
+    public synchronized int getMaxBusy() {
+        return maxBusy;
+    }
+
+    /**
+     * @return number of successful checkouts
+     */
+    public synchronized long getCheckouts() {
+        return checkouts;
+    }
+
+    /**
+     * @return mean time of successful checkouts (ms), including the time to
+     * wait for a session, or to start a new one
+     */
+    public synchronized double getMeanCheckoutTime() {
+        return checkouts == 0 ? 0 : checkoutTime / 1e6 / checkouts;
+    }
+
+    /**
+     * @return longest time of a successful checkout (ms)
+     */
+    public synchronized double getMaxCheckoutTime() {
+        return maxCheckoutTime / 1e6;
+    }
+
+    /**
+     * @return number of checkouts which failed after waitTimeout
+     */
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return number of sessions started by the pool
+     */
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return number of broken (or not reset) sessions ended by the pool
+     */
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RserveSessionPool: " + size() + "/" + maxSize + " sessions (" + busy.size() + " checked out), "
+                + checkouts + " checkouts in " + getMeanCheckoutTime() + " ms (max " + getMaxCheckoutTime() + " ms), "
+                + timeouts + " timeouts, " + created + " started, " + discarded + " discarded";
+    }
+}
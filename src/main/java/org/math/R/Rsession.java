@@ -5,6 +5,7 @@ import java.io.FileFilter;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
@@ -13,7 +14,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -418,7 +426,9 @@ public abstract class Rsession implements RLog {
     StringBuilder nb = new StringBuilder();
 
     public void note_text(String txt) {
-        nb.append(txt).append("\n");
+        synchronized (nb) {
+            nb.append(txt).append("\n");
+        }
     }
 
     public void note_code(String... code) {
@@ -430,7 +440,9 @@ public abstract class Rsession implements RLog {
     }
 
     public void note_code(String code) {
-        nb.append("```{r}\n").append(code).append("\n```\n");
+        synchronized (nb) {
+            nb.append("```{r}\n").append(code).append("\n```\n");
+        }
     }
 
     protected static String toRcode(Object o) {
@@ -457,43 +469,48 @@ public abstract class Rsession implements RLog {
     }
 
     protected static String toRcode(double[] d) {
-        String ds = "c( ";
+        StringBuilder ds = new StringBuilder("c( ");
         for (double e : d) {
-            ds = ds + e + ",";
+            ds.append(e).append(",");
         }
-        return ds.substring(0, ds.length() - 1) + ")";
+        ds.setLength(ds.length() - 1);
+        return ds.append(")").toString();
     }
 
     protected static String toRcode(Double[] d) {
-        String ds = "c( ";
+        StringBuilder ds = new StringBuilder("c( ");
         for (double e : d) {
-            ds = ds + e + ",";
+            ds.append(e).append(",");
         }
-        return ds.substring(0, ds.length() - 1) + ")";
+        ds.setLength(ds.length() - 1);
+        return ds.append(")").toString();
     }
 
     protected static String toRcode(double[][] d) {
-        String ds = "rbind( ";
+        StringBuilder ds = new StringBuilder("rbind( ");
         for (double[] e : d) {
-            ds = ds + toRcode(e) + ",";
+            ds.append(toRcode(e)).append(",");
         }
-        return ds.substring(0, ds.length() - 1) + ")";
+        ds.setLength(ds.length() - 1);
+        return ds.append(")").toString();
     }
 
     protected static String toRcode(Double[][] d) {
-        String ds = "rbind( ";
+        StringBuilder ds = new StringBuilder("rbind( ");
         for (Double[] e : d) {
-            ds = ds + toRcode(e) + ",";
+            ds.append(toRcode(e)).append(",");
         }
-        return ds.substring(0, ds.length() - 1) + ")";
+        ds.setLength(ds.length() - 1);
+        return ds.append(")").toString();
     }
 
     protected static String toRcode(String[] d) {
-        String ds = "c( ";
+        StringBuilder ds = new StringBuilder("c( ");
         for (String e : d) {
-            ds = ds + "'" + e + "',";
+            ds.append("'").append(e).append("',");
         }
-        return ds.substring(0, ds.length() - 1) + ")";
+        ds.setLength(ds.length() - 1);
+        return ds.append(")").toString();
     }
 
     protected static String toRcode(Map l) {
@@ -510,7 +527,9 @@ public abstract class Rsession implements RLog {
     }
 
     public String notebook() {
-        return nb_header.toString() + "\n" + nb.toString().replace("```\n```{r}\n", "");
+        synchronized (nb) {
+            return nb_header.toString() + "\n" + nb.toString().replace("```\n```{r}\n", "");
+        }
     }
 
     @Override
@@ -1018,6 +1037,207 @@ public abstract class Rsession implements RLog {
         return cast(o);
     }
 
+    // <editor-fold defaultstate="collapsed" desc="Asynchronous calls">
+    /**
+     * Executor running the asynchronous calls of the session (evalAsync,
+     * voidEvalAsync, setAsync, submitAsync). They are submitted to it one at a
+     * time, in the order they were called, so it may be shared by many
+     * sessions. Default is shared by all sessions, using virtual threads if
+     * available (java 21+), else daemon threads.
+     */
+    public Executor asyncExecutor = defaultAsyncExecutor();
+
+    private static Executor defaultAsyncExecutor;
+
+    private static synchronized Executor defaultAsyncExecutor() {
+        if (defaultAsyncExecutor == null) {
+            try {
+                defaultAsyncExecutor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                defaultAsyncExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Rsession async");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        return defaultAsyncExecutor;
+    }
+
+    // calls submitted and not yet started, in FIFO order
+    private final Queue<AsyncCall<?>> asyncCalls = new ArrayDeque<AsyncCall<?>>();
+    private boolean asyncRunning = false;
+
+    private static class AsyncCall<T> implements Runnable {
+
+        final Callable<T> call;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+
+        AsyncCall(Callable<T> call) {
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) { // cancelled before started
+                return;
+            }
+            try {
+                result.complete(call.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }
+    }
+
+    /**
+     * Call a task of this session asynchronously: it is started (in
+     * asyncExecutor) after the previous asynchronous calls of the session are
+     * done. Synchronous calls (eval, ...) are not ordered with them.
+     *
+     * @param <T> result type
+     * @param call task using this session
+     * @return future result of the task (failed with its exception)
+     */
+    public <T> CompletableFuture<T> submitAsync(Callable<T> call) {
+        AsyncCall<T> c = new AsyncCall<T>(call);
+        synchronized (asyncCalls) {
+            asyncCalls.add(c);
+            if (asyncRunning) {
+                return c.result;
+            }
+            asyncRunning = true;
+        }
+        runNextAsync();
+        return c.result;
+    }
+
+    // start next call in asyncExecutor, which will start the following one when done
+    private void runNextAsync() {
+        while (true) {
+            final AsyncCall<?> c;
+            synchronized (asyncCalls) {
+                c = asyncCalls.poll();
+                if (c == null) {
+                    asyncRunning = false;
+                    return;
+                }
+            }
+            try {
+                asyncExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            c.run();
+                        } finally {
+                            runNextAsync();
+                        }
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                c.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Asynchronous eval(expression, tryEval).
+     *
+     * @param expression R expression to evaluate
+     * @param tryEval encapsulate command in try() to catch errors
+     * @return future java casted value (failed with RException)
+     */
+    public CompletableFuture<Object> evalAsync(final String expression, final boolean tryEval) {
+        return submitAsync(new Callable<Object>() {
+            @Override
+            public Object call() throws RException {
+                return eval(expression, tryEval);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous eval(expression).
+     *
+     * @param expression R expression to evaluate
+     * @return future java casted value (failed with RException)
+     */
+    public CompletableFuture<Object> evalAsync(final String expression) {
+        return submitAsync(new Callable<Object>() {
+            @Override
+            public Object call() throws RException {
+                return eval(expression);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous voidEval(expression, tryEval).
+     *
+     * @param expression R expression to evaluate
+     * @param tryEval encapsulate command in try() to catch errors
+     * @return future well evaluated ? (failed with RException)
+     */
+    public CompletableFuture<Boolean> voidEvalAsync(final String expression, final boolean tryEval) {
+        return submitAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws RException {
+                return voidEval(expression, tryEval);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous voidEval(expression).
+     *
+     * @param expression R expression to evaluate
+     * @return future well evaluated ? (failed with RException)
+     */
+    public CompletableFuture<Boolean> voidEvalAsync(final String expression) {
+        return submitAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws RException {
+                return voidEval(expression);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous set(varname, var).
+     *
+     * @param varname R object name
+     * @param var R object value
+     * @return future succeeded ? (failed with RException)
+     */
+    public CompletableFuture<Boolean> setAsync(final String varname, final Object var) {
+        return submitAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws RException {
+                return set(varname, var);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous set(vars).
+     *
+     * @param vars R objects to set as key/values
+     * @return future succeeded ? (failed with RException)
+     */
+    public CompletableFuture<Boolean> setAsync(final Map<String, Object> vars) {
+        return submitAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws RException {
+                return set(vars);
+            }
+        });
+    }
+    // </editor-fold>
+
     public class Function {
 
         String name;
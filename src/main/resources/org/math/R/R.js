@@ -53,21 +53,29 @@
         return data.join('\\n');
     }
         
-    // Read variables from file and return a list of all variables of the json
-    function readJsonVariables (path) {
-        var Paths = Java.type('java.nio.file.Paths');
-        var Files = Java.type('java.nio.file.Files');
+    // Absolute path of a file (relative to working dir)
+    function absolutePath (path) {
         var File = Java.type('java.io.File');
         var ofile = new File(path);
         if (!ofile.isAbsolute()) ofile=new File(getwd(),path);
-        var linesList = Files.readAllLines(Paths.get(ofile.getAbsolutePath()), Java.type('java.nio.charset.StandardCharsets').UTF_8);
-        var lines = "";
-        linesList.forEach(function(line) { 
-            lines += line;
-        });
-        eval(print(lines));
-        var firstLine = lines;
-        var jsonObject = JSON.parse(firstLine);
+        return ofile.getAbsolutePath();
+    }
+
+    // Read a json file (without line breaks, as written by createJsonString)
+    function readJson (path) {
+        var Paths = Java.type('java.nio.file.Paths');
+        var Files = Java.type('java.nio.file.Files');
+        var linesList = Files.readAllLines(Paths.get(absolutePath(path)), Java.type('java.nio.charset.StandardCharsets').UTF_8);
+        return JSON.parse(Java.type('java.lang.String').join("", linesList));
+    }
+
+    // Read variables from file (snapshot or json) and return a list of all variables
+    function readJsonVariables (path) {
+        var Snapshot = Java.type('org.math.R.R2jsSnapshot');
+        if (Snapshot.isSnapshot(absolutePath(path))) {
+            return Java.from(Snapshot.names(absolutePath(path)));
+        }
+        var jsonObject = readJson(path);
         var variables = Object.keys(jsonObject);
         return variables;
     }
@@ -96,25 +104,135 @@
         return jsonString;
     }
         
-    // Load variables from file at json format
+    // Numeric vector (array of numbers only)
+    function isNumbers (x) {
+        if (!Array.isArray(x))
+            return false;
+        for (var i = 0; i < x.length; i++) {
+            if (typeof x[i] !== 'number')
+                return false;
+        }
+        return true;
+    }
+
+    // Numeric matrix (array of numeric vectors of same length)
+    function isNumbersMatrix (x) {
+        if (!Array.isArray(x) || x.length == 0)
+            return false;
+        for (var i = 0; i < x.length; i++) {
+            if (!isNumbers(x[i]) || x[i].length != x[0].length)
+                return false;
+        }
+        return true;
+    }
+
+    // Save variables in a binary snapshot file (see R2jsSnapshot), one after the other
+    function saveSnapshot (path, variables, jsVariableStorageObject) {
+        var Writer = Java.type('org.math.R.R2jsSnapshot$Writer');
+        var w = new Writer(absolutePath(path));
+        try {
+            (Array.isArray(variables) ? variables : [variables]).forEach(function (variable) {
+                var value = jsVariableStorageObject[variable];
+                if (value === undefined)
+                    return;
+                var names = (value !== null && Array.isArray(value.names)) ? Java.to(value.names, 'java.lang.String[]') : null;
+                if (value === null) {
+                    w.writeNull(variable);
+                } else if (typeof value === 'function') {
+                    w.writeFunction(variable, value + '');
+                } else if (typeof value === 'number') {
+                    w.writeNumber(variable, value);
+                } else if (typeof value === 'boolean') {
+                    w.writeBoolean(variable, value);
+                } else if (typeof value === 'string') {
+                    w.writeString(variable, value);
+                } else if (isNumbers(value)) {
+                    w.writeNumbers(variable, Java.to(value, 'double[]'), names);
+                } else if (isNumbersMatrix(value)) {
+                    var rows = new (Java.type('double[][]'))(value.length);
+                    for (var i = 0; i < value.length; i++) {
+                        rows[i] = Java.to(value[i], 'double[]');
+                    }
+                    w.writeMatrix(variable, rows, names);
+                } else {
+                    w.writeJson(variable, createJsonString(variable, jsVariableStorageObject), names);
+                }
+            });
+        } finally {
+            w.close();
+        }
+    }
+
+    // Load variables from a snapshot file (see saveSnapshot)
+    function loadSnapshot (path, jsVariableStorageObject) {
+        var Snapshot = Java.type('org.math.R.R2jsSnapshot');
+        var Reader = Java.type('org.math.R.R2jsSnapshot$Reader');
+        var r = new Reader(absolutePath(path));
+        var functions = [];
+        var sources = [];
+        try {
+            while (r.next()) {
+                var variable = r.name();
+                var value;
+                switch (r.type()) {
+                    case Snapshot.NULL:
+                        value = null;
+                        break;
+                    case Snapshot.NUMBER:
+                        value = r.number();
+                        break;
+                    case Snapshot.BOOLEAN:
+                        value = r.bool();
+                        break;
+                    case Snapshot.STRING:
+                        value = r.text();
+                        break;
+                    case Snapshot.NUMBERS:
+                        value = Java.from(r.numbers());
+                        break;
+                    case Snapshot.MATRIX:
+                        var rows = r.matrix();
+                        value = new Array(rows.length);
+                        for (var i = 0; i < rows.length; i++) {
+                            value[i] = Java.from(rows[i]);
+                        }
+                        // as matrices created by math.js
+                        value = math.clone(value);
+                        break;
+                    case Snapshot.FUNCTION:
+                        functions.push(variable);
+                        sources.push(r.text());
+                        continue;
+                    default:
+                        value = JSON.parse(r.text())[variable];
+                }
+                var names = r.names();
+                if (names !== null)
+                    value.names = Java.from(names);
+                jsVariableStorageObject[variable] = value;
+            }
+        } finally {
+            r.close();
+        }
+        if (functions.length > 0) {
+            // all functions are evaluated at once, in global scope
+            var values = (0, eval)('[' + sources.join(',\n') + ']');
+            for (var j = 0; j < functions.length; j++) {
+                jsVariableStorageObject[functions[j]] = values[j];
+            }
+        }
+        return true;
+    }
+
+    // Load variables from file (snapshot, or json format)
     function loadJson (path, jsVariableStorageObject) {
-        var Paths = Java.type('java.nio.file.Paths');
-        var Files = Java.type('java.nio.file.Files');
-        var File = Java.type('java.io.File');
-        var ofile = new File(path);
-        if (!ofile.isAbsolute()) ofile=new File(getwd(),path);
-        var linesList = Files.readAllLines(Paths.get(ofile.getAbsolutePath()), Java.type('java.nio.charset.StandardCharsets').UTF_8);
-        var lines = "";
-        linesList.forEach(function(line) { 
-            lines += line;
-        });
-        eval(print(lines));
-        var firstLine = lines;
-        var jsonObject = JSON.parse(firstLine);
+        if (Java.type('org.math.R.R2jsSnapshot').isSnapshot(absolutePath(path))) {
+            return loadSnapshot(path, jsVariableStorageObject);
+        }
+        var jsonObject = readJson(path);
         var varList = Object.keys(jsonObject);
         varList.forEach(function (variable) {
-            var value = eval("jsonObject." + variable);
-            eval(print(variable + '=' + value));
+            var value = jsonObject[variable];
             if (typeof (value) == "string") {
                 if (value.startsWith("function")) {
                     jsVariableStorageObject[variable] = eval(value);
@@ -296,7 +414,21 @@
             return s;
     }
 
+    // Java implementations of vector builtins (see R2jsVectors), which return
+    // null for arguments they do not support (so js implementations are used)
+    var Vectors = Java.type('org.math.R.R2jsVectors');
+    var useVectors = true;
+
+    function useJavaVectors(b) {
+        useVectors = b;
+    }
+
     function rep(x,times) {
+        if (useVectors) {
+            var v = Vectors.rep(x, times);
+            if (v !== null)
+                return Java.from(v);
+        }
         var array = [];
         var i=0;
         var l = 1;
@@ -312,6 +444,11 @@
     }
 
     function repLen(x,length__out) {
+        if (useVectors) {
+            var v = Vectors.repLen(x, length__out);
+            if (v !== null)
+                return Java.from(v);
+        }
         var array = [];
         var i=0;
         while (i < length__out) {
@@ -325,6 +462,11 @@
     }
 
     function which(x) {
+        if (useVectors) {
+            var v = Vectors.which(x);
+            if (v !== null)
+                return Java.from(v);
+        }
         var array = [];
         var i=0;
         while (i < length(x)) {
@@ -336,6 +478,11 @@
     }
 
     function whichMin(x) {
+        if (useVectors) {
+            var v = Vectors.whichMin(x);
+            if (v !== null)
+                return Java.from(v);
+        }
         var array = [1];
         var i=1;
         var m=x[0];
@@ -353,6 +500,11 @@
     }
 
     function whichMax(x) {
+        if (useVectors) {
+            var v = Vectors.whichMax(x);
+            if (v !== null)
+                return Java.from(v);
+        }
         var array = [1];
         var i=1;
         var m=x[0];
@@ -426,6 +578,11 @@
         var args = Array.prototype.slice.call(arguments);
         var sep = "";
         var collapse = args.shift();
+        if (useVectors && typeof collapse === 'string') {
+            var v = Vectors.paste(sep, collapse, args);
+            if (v !== null)
+                return v;
+        }
         var n = 1;
         for (var a in args)
             if (Array.isArray(args[a]))
@@ -459,6 +616,11 @@
         var args = Array.prototype.slice.call(arguments);
         var sep = args.shift();
         var collapse = args.shift();
+        if (useVectors && typeof sep === 'string' && typeof collapse === 'string') {
+            var v = Vectors.paste(sep, collapse, args);
+            if (v !== null)
+                return v;
+        }
         var n = 1;
         for (var a in args)
             if (Array.isArray(args[a]))
@@ -489,6 +651,11 @@
     }
 
     function all(b) {
+        if (useVectors) {
+            var v = Vectors.all(b);
+            if (v !== null)
+                return v;
+        }
         for (var i = 0; i < length(b); i++) {
             if (!asLogical(b[i])) {
                 return false;
@@ -498,6 +665,11 @@
     }
 
     function any(b) {
+        if (useVectors) {
+            var v = Vectors.any(b);
+            if (v !== null)
+                return v;
+        }
         for (var i = 0; i < length(b); i++) {
             if (asLogical(b[i])) {
                 return true;
@@ -520,6 +692,16 @@
 
     function apply(x, margin, f) {
         var y = [];
+        var m = useVectors && (margin === 1 || margin === 2) ? Java.type('org.math.R.R2jsLinearAlgebra').asMatrix(x) : null;
+        if (m !== null) {
+            // rows (or columns) of numeric matrices taken in java, squeezed as math.squeeze does
+            if (margin === 2)
+                m = Java.type('org.math.R.R2jsLinearAlgebra').transpose(m);
+            for (var i = 0; i < m.length; i++) {
+                y[i] = f(m[i].length == 1 ? m[i][0] : Java.from(m[i]));
+            }
+            return y;
+        }
         if (margin === 1) {
             for (var i = 0; i < nrow(x); i++) {
                 y[i] = f(math.squeeze(math.subset(x,math.index(i,range(0,ncol(x)-1)))));
@@ -542,6 +724,20 @@
             return Object.keys(x);
     }
 
+    // Counting loops on ranges (for (i in a:b)): step, test and increment.
+    // These calls are inlined by R2jsSession, so they are only used as fallback.
+    function _by(from, to) {
+        return from <= to ? 1 : -1;
+    }
+
+    function _while(i, to, by) {
+        return (i - to) * by <= 0;
+    }
+
+    function _next(i, by) {
+        return i + by;
+    }
+
     var wd = Java.type('java.lang.System').getProperty("user.dir");
     function getwd() {
         return wd;
@@ -604,7 +800,83 @@
         }
     }
     
+    // Rows of a plain 2D array (rows of same length, with no object values),
+    // as a vector gives one row (or column if byColumn), a scalar one value.
+    // @return null if x is not such a matrix, vector or scalar
+    function plainRows(x, byColumn) {
+        if (typeof x === 'number' || typeof x === 'string' || typeof x === 'boolean')
+            return [[x]];
+        if (!Array.isArray(x) || x.length == 0)
+            return null;
+        var r = Array.isArray(x[0]) ? x : (byColumn ? x.map(function (v) { return [v]; }) : [x]);
+        var n = r[0].length;
+        if (n == 0)
+            return null;
+        for (var i = 0; i < r.length; i++) {
+            if (!Array.isArray(r[i]) || r[i].length != n)
+                return null;
+            for (var j = 0; j < n; j++)
+                if (r[i][j] !== null && typeof r[i][j] === 'object')
+                    return null;
+        }
+        return r;
+    }
+
+    // Copy values of row r in x from index i. Rows are not sliced or concatenated,
+    // as these ones built by math.js come from another global than R.js.
+    function copyRow(r, x, i) {
+        for (var j = 0; j < r.length; j++)
+            x[i + j] = r[j];
+        return x;
+    }
+
+    // rbind(a, b) of a plain matrix a and a matrix or vector b of same columns,
+    // copied directly (without math.js conversions), or null if not possible
+    function rbindPlain(a, b) {
+        if (!Array.isArray(a) || !Array.isArray(a[0]))
+            return null;
+        var ra = plainRows(a, false);
+        var rb = plainRows(b, false);
+        if (ra === null || rb === null || ra[0].length != rb[0].length)
+            return null;
+        var x = new Array(ra.length + rb.length);
+        for (var i = 0; i < ra.length; i++)
+            x[i] = copyRow(ra[i], new Array(ra[i].length), 0);
+        for (var i = 0; i < rb.length; i++)
+            x[ra.length + i] = copyRow(rb[i], new Array(rb[i].length), 0);
+        if (a.names != null)
+            x.names = a.names;
+        return x;
+    }
+
+    // cbind(a, b) of a plain matrix a and a matrix or vector b of same rows,
+    // copied directly (without math.js conversions), or null if not possible
+    function cbindPlain(a, b) {
+        if (!Array.isArray(a) || !Array.isArray(a[0]))
+            return null;
+        var ra = plainRows(a, true);
+        var rb = plainRows(b, true);
+        if (ra === null || rb === null || ra.length != rb.length)
+            return null;
+        var x = new Array(ra.length);
+        for (var i = 0; i < ra.length; i++) {
+            x[i] = copyRow(ra[i], new Array(ra[i].length + rb[i].length), 0);
+            copyRow(rb[i], x[i], ra[i].length);
+        }
+        if (a.names != null) {
+            x.names = a.names;
+            if (Array.isArray(b[0]) && b.names != null)
+                x.names = a.names.concat(b.names);
+        }
+        return x;
+    }
+
     function rbind(a,b,c) {
+        if (typeof(c)==="undefined" && typeof(b)!=="undefined") {
+            var plain = rbindPlain(a, b);
+            if (plain !== null)
+                return plain;
+        }
         var aCopy;
         var bCopy;
         var cCopy;
@@ -639,7 +911,23 @@
         return x;
     }
 
+    // x = rbind(x, b) as a statement, x being variable name of environment env:
+    // rows appended in place when possible (see rbindTo in env.js)
+    function rbindTo(env, name, b, c) {
+        if (typeof(c)==="undefined") {
+            var g = __env.rbindTo(env, name, b);
+            if (g !== null)
+                return g;
+        }
+        return env[name] = rbind(env[name], b, c);
+    }
+
     function cbind(a,b,c) {
+        if (typeof(c)==="undefined" && typeof(b)!=="undefined") {
+            var plain = cbindPlain(a, b);
+            if (plain !== null)
+                return plain;
+        }
         var aCopy;
         var bCopy;
         var cCopy;
@@ -789,6 +1077,7 @@
     proto.readJsonVariables = readJsonVariables;
     proto.createJsonString = createJsonString;
     proto.loadJson = loadJson;
+    proto.saveSnapshot = saveSnapshot;
     proto.removeMatching = removeMatching;
     proto.expendArray = expendArray;
     proto._index = _index;
@@ -803,6 +1092,7 @@
     proto.repLen = repLen;
     proto.cbind = cbind;
     proto.rbind = rbind;
+    proto.rbindTo = rbindTo;
     proto.which = which;
     proto.whichMin = whichMin;
     proto.whichMax = whichMax;
@@ -814,7 +1104,11 @@
     proto.all = all;
     proto.any = any;
     proto.apply = apply;
+    proto.useJavaVectors = useJavaVectors;
     proto._in = _in;
+    proto._by = _by;
+    proto._while = _while;
+    proto._next = _next;
     proto.getwd = getwd;
     proto.setwd = setwd;
     proto.SysSleep = SysSleep;
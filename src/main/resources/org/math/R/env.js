@@ -0,0 +1,201 @@
+//! R2js environments
+
+;(function (global, factory) {
+    typeof exports === 'object' && typeof module !== 'undefined' ? module.exports = factory() :
+    typeof define === 'function' && define.amd ? define(factory) :
+    global.env = factory()
+}(this, (function () { 'use strict';
+
+    // Environments are forked with copy-on-write: the forked environment and
+    // its fork both get as prototype the object holding the values of the
+    // forked one, which is not modified anymore. So forking does not copy
+    // any value, and each environment only owns the values assigned after.
+
+    // Number of fork layers above an environment (own non enumerable property of layers)
+    var DEPTH = '__fork_depth__';
+    // Deeper environments are flattened when forked, to bound the cost of variable lookups
+    var MAX_DEPTH = 16;
+
+    function depth (e) {
+        return e[DEPTH] || 0;
+    }
+
+    // Fork an environment
+    // @return [environment to use instead of e, the fork]
+    function fork (e) {
+        if (depth(e) > 0 && Object.getOwnPropertyNames(e).length == 0) {
+            // nothing assigned in e since it was forked: share the same layer
+            return [e, Object.create(Object.getPrototypeOf(e))];
+        }
+        var layer = depth(e) < MAX_DEPTH ? e : flatten(e);
+        Object.defineProperty(layer, DEPTH, {value: depth(layer) + 1});
+        return [Object.create(layer), Object.create(layer)];
+    }
+
+    // Copy of all the values (own and inherited) of an environment, without layers
+    function flatten (e) {
+        var f = {};
+        for (var k in e) {
+            if (e[k] !== undefined)
+                f[k] = e[k];
+        }
+        return f;
+    }
+
+    // Names of the variables of an environment
+    function keys (e) {
+        if (depth(e) == 0)
+            return Object.keys(e);
+        var k = [];
+        for (var n in e) {
+            if (e[n] !== undefined)
+                k.push(n);
+        }
+        return k;
+    }
+
+    // Is a variable defined in an environment (or in its layers) ?
+    function exists (e, n) {
+        if (depth(e) == 0)
+            return e.hasOwnProperty(n);
+        for (var o = e; o !== null && o !== Object.prototype; o = Object.getPrototypeOf(o)) {
+            if (o.hasOwnProperty(n))
+                return o[n] !== undefined;
+        }
+        return false;
+    }
+
+    // Remove a variable, hiding the value of the layers if any
+    function remove (e, n) {
+        delete e[n];
+        if (exists(e, n))
+            e[n] = undefined;
+    }
+
+    // Matrices grown by "x = rbind(x, ...)" statements are appended in place,
+    // like go slices: the variable holds a view of the first n rows of a row
+    // buffer with spare capacity, which views share with the count of rows
+    // used in it. A view appends in place only if it ends where the used
+    // rows end: otherwise a longer view was appended from the same rows (an
+    // alias of the matrix, or the matrix of a forked environment), so rows are
+    // copied in a new buffer. Rows are never modified once in a buffer, so
+    // views only share rows which none of them can change.
+    // The view is kept in an accessor of the variable, which gives the plain
+    // array of its rows to all other uses (so dim, nrow, indexing, ... work on
+    // its own rows), and which is replaced by any other assignment.
+    var GROWN = '__grown__';
+
+    function Grown (buffer, n, names) {
+        this.buffer = buffer;
+        this.n = n;
+        this.names = names;
+        this.rows = null;
+    }
+
+    Grown.prototype[GROWN] = true;
+
+    // Plain array of the rows of the view (built once)
+    Grown.prototype.view = function () {
+        if (this.rows === null) {
+            this.rows = this.buffer.rows.slice(0, this.n);
+            if (this.names != null)
+                this.rows.names = this.names;
+        }
+        return this.rows;
+    };
+
+    // The view held by variable n of environment e (or by its layers), or null
+    function grown (e, n) {
+        for (var o = e; o !== null && o !== Object.prototype; o = Object.getPrototypeOf(o)) {
+            var d = Object.getOwnPropertyDescriptor(o, n);
+            if (d !== undefined)
+                return d.get !== undefined && d.get[GROWN] !== undefined ? d.get[GROWN] : null;
+        }
+        return null;
+    }
+
+    // Set view g as the value of variable n of environment e
+    function hold (e, n, g) {
+        var get = function () {
+            return g.view();
+        };
+        get[GROWN] = g;
+        Object.defineProperty(e, n, {
+            get: get,
+            set: function (v) {
+                if (v !== null && typeof v === 'object' && v[GROWN] === true)
+                    hold(this, n, v);
+                else
+                    Object.defineProperty(this, n, {value: v, writable: true, enumerable: true, configurable: true});
+            },
+            enumerable: true,
+            configurable: true
+        });
+    }
+
+    // Rows of a plain matrix (rows of same length with no object values), a
+    // vector (one row) or a scalar, or null
+    function plainRows (x) {
+        if (typeof x === 'number' || typeof x === 'string' || typeof x === 'boolean')
+            return [[x]];
+        if (!Array.isArray(x) || x.length == 0)
+            return null;
+        var r = Array.isArray(x[0]) ? x : [x];
+        var m = r[0].length;
+        if (m == 0)
+            return null;
+        for (var i = 0; i < r.length; i++) {
+            if (!Array.isArray(r[i]) || r[i].length != m)
+                return null;
+            for (var j = 0; j < m; j++)
+                if (r[i][j] !== null && typeof r[i][j] === 'object')
+                    return null;
+        }
+        return r;
+    }
+
+    // Copy of row r (values copied one by one, as r may come from another global)
+    function copyRow (r) {
+        var c = new Array(r.length);
+        for (var j = 0; j < r.length; j++)
+            c[j] = r[j];
+        return c;
+    }
+
+    // x = rbind(x, b), with x the variable n of environment e and b a plain
+    // matrix, vector or scalar of the columns of x: appended in place if x is
+    // the longest view of its rows, else in a copy of its rows.
+    // @return the new view of x (also held by the variable), or null if x or b
+    // is not plain (then to be bound as usual)
+    function rbindTo (e, n, b) {
+        var g = grown(e, n);
+        if (g === null || g.n != g.buffer.used) {
+            var x = g === null ? e[n] : g.view();
+            var r = plainRows(x);
+            if (r === null || r !== x)
+                return null;
+            var rows = new Array(r.length);
+            for (var i = 0; i < r.length; i++)
+                rows[i] = g === null ? copyRow(r[i]) : r[i];
+            g = new Grown({rows: rows, used: rows.length}, rows.length, x.names);
+        }
+        var rb = plainRows(b);
+        if (rb === null || rb[0].length != g.buffer.rows[0].length)
+            return null;
+        var names = g.rows !== null ? g.rows.names : g.names;
+        var buffer = g.buffer;
+        for (var i = 0; i < rb.length; i++)
+            buffer.rows[buffer.used++] = copyRow(rb[i]);
+        var appended = new Grown(buffer, buffer.used, names);
+        hold(e, n, appended);
+        return appended;
+    }
+
+    return {
+        fork: fork,
+        keys: keys,
+        exists: exists,
+        remove: remove,
+        rbindTo: rbindTo
+    };
+})));
@@ -0,0 +1,73 @@
+//! R2js linear algebra
+
+;(function (global, factory) {
+    typeof exports === 'object' && typeof module !== 'undefined' ? module.exports = factory() :
+    typeof define === 'function' && define.amd ? define(factory) :
+    global.linalg = factory()
+}(this, (function () { 'use strict';
+
+    // Numeric matrices are computed by java kernels (R2jsLinearAlgebra), values
+    // being passed as java arrays. Other values (vectors, scalars, non numeric
+    // matrices, ...) are still computed by math.js.
+    var LinearAlgebra = Java.type('org.math.R.R2jsLinearAlgebra');
+
+    // js matrix (array of rows) of a java double[][], created in this global scope (as math.js results)
+    function fromJava (m) {
+        var x = new Array(m.length);
+        for (var i = 0; i < m.length; i++) {
+            x[i] = Java.from(m[i]);
+        }
+        return x;
+    }
+
+    // x %*% y
+    function multiply (x, y) {
+        var a = LinearAlgebra.asMatrix(x);
+        var b = a === null ? null : LinearAlgebra.asMatrix(y);
+        if (b === null || a[0].length != b.length)
+            return math.multiply(x, y);
+        return fromJava(LinearAlgebra.multiply(a, b));
+    }
+
+    // t(x)
+    function transpose (x) {
+        var a = LinearAlgebra.asMatrix(x);
+        if (a === null)
+            return math.transpose(x);
+        return fromJava(LinearAlgebra.transpose(a));
+    }
+
+    // determinant(x)
+    function det (x) {
+        var a = LinearAlgebra.asMatrix(x);
+        if (a === null || a.length != a[0].length)
+            return math.det(x);
+        return LinearAlgebra.det(a);
+    }
+
+    // solve(x, y), or inverse of x if y is missing
+    function solve (x, y) {
+        var a = LinearAlgebra.asMatrix(x);
+        if (a === null || a.length != a[0].length)
+            return y === undefined ? math.inv(x) : math.lusolve(x, y);
+        if (y === undefined)
+            return fromJava(LinearAlgebra.inverse(a));
+        var b = LinearAlgebra.asMatrix(y);
+        if (b === null) {
+            // vector: solved as a column
+            var v = LinearAlgebra.asVector(y);
+            if (v !== null)
+                b = LinearAlgebra.transpose([v]);
+        }
+        if (b === null || b.length != a.length)
+            return math.lusolve(x, y);
+        return fromJava(LinearAlgebra.solve(a, b));
+    }
+
+    return {
+        multiply: multiply,
+        transpose: transpose,
+        det: det,
+        solve: solve
+    };
+})));
@@ -10,12 +10,13 @@
         return createLocal.apply(null, arguments);
     }
 
-    function createLocal () {
-        return new _rand();
+    function createLocal (generator) {
+        return new _rand(generator);
     }
 
-    // rand prototype object
-    function _rand() {
+    // rand prototype object, using the given java generator (R2jsRandom) if any
+    function _rand(generator) {
+        this.generator = generator;
     }
     
 
@@ -203,13 +204,78 @@ function vectorize(generator) {
 
     var proto = _rand.prototype;
 
-proto.runif = vectorize(r1unif);
-proto.rnorm = vectorize(r1norm);
-proto.rchisq = vectorize(r1chisq);
-proto.rpois = vectorize(r1poisson);
-proto.rcauchy = vectorize(r1cauchy);
+var runif = vectorize(r1unif);
+var rnorm = vectorize(r1norm);
+var rchisq = vectorize(r1chisq);
+var rpois = vectorize(r1poisson);
+var rcauchy = vectorize(r1cauchy);
+
+// Generators use the java generator (bulk generation, seeded by setSeed) if
+// available, otherwise the js ones (based on Math.random)
+proto.runif = function (n, min, max) {
+  if (min === undefined) {
+    min = 0;
+  }
+  if (max === undefined) {
+    max = 1;
+  }
+  if (this.generator) {
+    return Java.from(this.generator.runif(n, min, max));
+  }
+  return runif(n, min, max);
+};
+proto.rnorm = function (n, mean, stdev) {
+  if (mean === undefined) {
+    mean = 0.0;
+  }
+  if (stdev === undefined) {
+    stdev = 1.0;
+  }
+  if (this.generator) {
+    return Java.from(this.generator.rnorm(n, mean, stdev));
+  }
+  return rnorm(n, mean, stdev);
+};
+proto.rchisq = function (n, degreesOfFreedom) {
+  if (degreesOfFreedom === undefined) {
+    degreesOfFreedom = 1;
+  }
+  if (this.generator) {
+    return Java.from(this.generator.rchisq(n, degreesOfFreedom));
+  }
+  return rchisq(n, degreesOfFreedom);
+};
+proto.rpois = function (n, lambda) {
+  if (lambda === undefined) {
+    lambda = 1;
+  }
+  if (this.generator) {
+    return Java.from(this.generator.rpois(n, lambda));
+  }
+  return rpois(n, lambda);
+};
+proto.rcauchy = function (n, loc, scale) {
+  if (loc === undefined) {
+    loc = 0.0;
+  }
+  if (scale === undefined) {
+    scale = 1.0;
+  }
+  if (this.generator) {
+    return Java.from(this.generator.rcauchy(n, loc, scale));
+  }
+  return rcauchy(n, loc, scale);
+};
 //proto.rbernoulli = vectorize(r1bernoulli);
 
+// Restart the generator with given seed (only the java generator can be seeded)
+proto.setSeed = function (seed) {
+  if (this.generator) {
+    this.generator.setSeed(seed);
+  }
+  return null;
+};
+
     return hooks;
 
 })));
@@ -1,7 +1,12 @@
 package org.math.R;
 
+import java.io.StringReader;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.junit.Test;
 
 /**
@@ -122,4 +127,83 @@ public class R2jsParserTest {
         assert Arrays.equals(result.toArray(), expected) : result.toString() + "\n!=\n" + Arrays.asList(expected);
     }
 
+    @Test
+    public void testParserStrings() {
+
+        String inputString = "s = 'a;b#c(' # comment (\n"
+                + "t = paste(\"x)\", # first\n"
+                + "  '\\'#')\n"
+                + "u = 1;(v)";
+        List<String> result = R2jsUtils.parse(inputString);
+        String[] expected = new String[]{"s = 'a;b#c('", "t = paste(\"x)\",'\\'#')", "u = 1;", "(v)\n"};
+        assert Arrays.equals(result.toArray(), expected) : result.toString() + "\n!=\n" + Arrays.asList(expected);
+    }
+
+    @Test
+    public void testParserPositions() {
+
+        String inputString = "# header\n"
+                + "a = 1\n"
+                + "  f <- function(x) {\n"
+                + "    x + 1\n"
+                + "  }; b = 2\n"
+                + "g(";
+        R2jsUtils.Parser parser = R2jsUtils.parse(new StringReader(inputString));
+        int[][] positions = {{2, 1}, {3, 3}, {5, 6}};
+        for (int[] p : positions) {
+            assert parser.hasNext();
+            String e = parser.next();
+            assert parser.line() == p[0] && parser.column() == p[1] : e + " at " + parser.line() + ":" + parser.column();
+        }
+        assert !parser.hasNext();
+        assert parser.unterminated() == 6 : parser.unterminated();
+    }
+
+    @Test
+    public void testParserLongLine() {
+
+        int n = 200000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("a").append(i).append("=").append(i).append(";");
+        }
+        long start = System.currentTimeMillis();
+        List<String> result = R2jsUtils.parse(sb.toString());
+        System.err.println("parse: " + (System.currentTimeMillis() - start) + " ms");
+        assert result.size() == n : result.size();
+        assert result.get(n - 1).equals("a" + (n - 1) + "=" + (n - 1) + ";") : result.get(n - 1);
+    }
+
+    @Test
+    public void testReplaceCalls() {
+        Map<String, String> calls = new HashMap<>();
+        calls.put("rep", "__R.rep");
+        calls.put("abs", " math.abs");
+
+        String[] inputs = {"rep(1,2)", "x=abs(rep(-1,3))", "y.rep(1)", "srep(1)", "rep (1)", "rep", "abs(x)+__R.rep(2)+rep2(1)"};
+        for (String input : inputs) {
+            String expected = input;
+            for (String f : calls.keySet()) {
+                expected = expected.replaceAll("(?<!\\.)(\\b)" + f + "\\(", "$1" + calls.get(f) + "(");
+            }
+            String result = R2jsUtils.replaceCalls(input, calls);
+            assert result.equals(expected) : result + " != " + expected;
+        }
+    }
+
+    @Test
+    public void testPrefixWords() {
+        Set<String> words = new HashSet<>(Arrays.asList("x", "y1", "a__b"));
+
+        String[] inputs = {"x = y1 + 1", "f(x,y1)", "xx = x$y1 + o.x", "a__b[x] + __a__b", "__this__.x", "z", "x"};
+        for (String input : inputs) {
+            String expected = input;
+            for (String w : words) {
+                expected = expected.replaceAll("\\b(?<![\\$\\.[__]])" + w + "\\b", "__this__." + w);
+            }
+            String result = R2jsUtils.prefixWords(input, words, "__this__.");
+            assert result.equals(expected) : result + " != " + expected;
+        }
+    }
+
 }
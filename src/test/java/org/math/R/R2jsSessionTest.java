@@ -5,17 +5,26 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.script.ScriptException;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import org.math.R.Rsession.RException;
 
@@ -779,6 +788,229 @@ public class R2jsSessionTest {
 
     }
 
+    @Test
+    public void testLinearAlgebra() throws Rsession.RException {
+        engine.voidEval("A <- matrix(nrow = 2, ncol = 2, data = c(-2, 3, 2, 1), byrow=TRUE)");
+
+        // solve with a vector, and inverse
+        assert Arrays.deepEquals((double[][]) engine.eval("solve(A, c(11,9))"), new double[][]{{2}, {5}}) : Arrays.deepToString((double[][]) engine.eval("solve(A, c(11,9))"));
+        assert Arrays.deepEquals((double[][]) engine.eval("A %*% solve(A)"), new double[][]{{1, 0}, {0, 1}}) : Arrays.deepToString((double[][]) engine.eval("A %*% solve(A)"));
+
+        // vectors are still multiplied by math.js
+        assert Arrays.equals((double[]) engine.eval("A %*% c(1,1)"), new double[]{1, 3}) : Arrays.toString((double[]) engine.eval("A %*% c(1,1)"));
+
+        // same results as R2jsLinearAlgebra kernels
+        double[][] M = new double[30][30];
+        Random r = new Random(1);
+        for (int i = 0; i < M.length; i++) {
+            for (int j = 0; j < M.length; j++) {
+                M[i][j] = r.nextGaussian();
+            }
+        }
+        engine.set("M", M);
+        assert Arrays.deepEquals(engine.asMatrix(engine.eval("M %*% t(M)")), R2jsLinearAlgebra.multiply(M, R2jsLinearAlgebra.transpose(M)));
+        assert engine.asDouble(engine.eval("determinant(M)")) == R2jsLinearAlgebra.det(M) : engine.eval("determinant(M)");
+        double[][] I = engine.asMatrix(engine.eval("M %*% solve(M)"));
+        for (int i = 0; i < M.length; i++) {
+            for (int j = 0; j < M.length; j++) {
+                assertEquals(i == j ? 1 : 0, I[i][j], 1E-9);
+            }
+        }
+
+        try {
+            engine.eval("solve(matrix(c(1,2,2,4),nrow=2))");
+            assert false : "singular matrix not detected";
+        } catch (Rsession.RException e) {
+            assert true;
+        }
+    }
+
+    @Test
+    public void testForRanges() throws Rsession.RException {
+        engine.voidEval("f = function(n) {\ns = 0\nfor (i in 1:n) {\ns = s*10+i\n}\nreturn(s)\n}");
+        assert engine.asDouble(engine.eval("f(3)")) == 123 : engine.eval("f(3)");
+        // 1:0 is c(1,0) in R
+        assert engine.asDouble(engine.eval("f(0)")) == 10 : engine.eval("f(0)");
+
+        engine.voidEval("s = 0");
+        engine.voidEval("for (i in 3:1) s = s*10+i");
+        assert engine.asDouble(engine.eval("s")) == 321 : engine.eval("s");
+
+        // bounds are evaluated once
+        engine.voidEval("n = 2");
+        engine.voidEval("s = 0");
+        engine.voidEval("for (i in 0:(n+1)) {\nn = n+1\ns = s+i\n}");
+        assert engine.asDouble(engine.eval("s")) == 6 : engine.eval("s");
+
+        engine.voidEval("x = c(5,6,7)");
+        engine.voidEval("s = 0");
+        engine.voidEval("for (i in seq_along(x)) s = s+x[i]");
+        assert engine.asDouble(engine.eval("s")) == 18 : engine.eval("s");
+        engine.voidEval("for (i in seq_len(0)) s = s+100");
+        assert engine.asDouble(engine.eval("s")) == 18 : engine.eval("s");
+        engine.voidEval("for (i in seq_len(2)) s = s+i");
+        assert engine.asDouble(engine.eval("s")) == 21 : engine.eval("s");
+    }
+
+    @Test
+    public void testScalarOperators() throws Rsession.RException {
+        assert R2jsSession.replaceScalarOperators("if (__R._if(__R._lt(i,math.add(1, 2)))) x = __R._gt(i,1)").equals("if (__R._if(__R._lt(i,(1 + 2)))) x = __R._gt(i,1)");
+        String loop = "for (i = 1, __i_to = 3, __i_by = 1; (i - __i_to) * __i_by <= 0; i = i + __i_by) if (__R._if(__R._andand(__R._gt(i,1), true))) x = math.add(i, y)";
+        assert R2jsSession.replaceScalarOperators(loop).equals("for (i = 1, __i_to = 3, __i_by = 1; (i - __i_to) * __i_by <= 0; i = i + __i_by) if (((i > 1) && true)) x = math.add(i, y)") : R2jsSession.replaceScalarOperators(loop);
+        // i may be a vector
+        assert R2jsSession.replaceScalarOperators("i = [1,2];" + loop).contains("__R._gt(i,1)");
+
+        engine.voidEval("f = function(n) {\ns = 0\nfor (i in 1:n) {\nif (i > 2) {\ns = s+i*2-1\n}\n}\nreturn(s)\n}");
+        assert engine.asDouble(engine.eval("f(4)")) == 12 : engine.eval("f(4)");
+    }
+
+    @Test
+    public void testGrowMatrix() throws Rsession.RException {
+        engine.voidEval("X = matrix(c(0,0),1)");
+        engine.voidEval("for (i in 1:100) X = rbind(X, c(i, -i))");
+        assert engine.asDouble(engine.eval("nrow(X)")) == 101 : engine.eval("nrow(X)");
+        assert engine.asDouble(engine.eval("X[101,2]")) == -100 : engine.eval("X[101,2]");
+
+        // copies are not modified by next appends
+        engine.voidEval("Y = X");
+        engine.voidEval("X = rbind(X, c(1000, 1000))");
+        engine.voidEval("X = rbind(X, c(2000, 2000))");
+        assert engine.asDouble(engine.eval("nrow(Y)")) == 101 : engine.eval("nrow(Y)");
+        assert engine.asDouble(engine.eval("nrow(X)")) == 103 : engine.eval("nrow(X)");
+        engine.voidEval("f = function() {return(X)}");
+        engine.voidEval("Z = f()");
+        engine.voidEval("X = rbind(X, c(3000, 3000))");
+        assert engine.asDouble(engine.eval("nrow(Z)")) == 103 : engine.eval("nrow(Z)");
+
+        engine.voidEval("X = cbind(X, 1:104)");
+        engine.voidEval("X = cbind(X, 1:104)");
+        assert Arrays.equals(engine.asArray(engine.eval("dim(X)")), new double[]{104, 4}) : Arrays.toString(engine.asArray(engine.eval("dim(X)")));
+        assert engine.asDouble(engine.eval("X[104,4]")) == 104 : engine.eval("X[104,4]");
+
+        engine.copyGlobalEnv("grow");
+        engine.voidEval("X = rbind(X, c(0, 0, 0, 0))");
+        engine.setGlobalEnv("grow");
+        assert engine.asDouble(engine.eval("nrow(X)")) == 104 : engine.eval("nrow(X)");
+        engine.setGlobalEnv(null);
+        assert engine.asDouble(engine.eval("nrow(X)")) == 105 : engine.eval("nrow(X)");
+
+        // other shapes are still bound by math.js
+        engine.voidEval("B = rbind(c(1,2), c(3,4))");
+        assert Arrays.equals(engine.asArray(engine.eval("B[2,]")), new double[]{3, 4}) : Arrays.toString(engine.asArray(engine.eval("B[2,]")));
+        assert Arrays.equals(engine.asArray(engine.eval("dim(rbind(1:3, 4:6, 7:9))")), new double[]{3, 3});
+
+        // rows appended in place
+        long start = System.currentTimeMillis();
+        engine.voidEval("G = matrix(c(0,0,0),1)");
+        engine.voidEval("for (i in 1:5000) G = rbind(G, c(i, 2*i, 3*i))");
+        System.err.println("5000 rbind: " + (System.currentTimeMillis() - start) + " ms");
+        assert Arrays.equals(engine.asArray(engine.eval("dim(G)")), new double[]{5001, 3}) : Arrays.toString(engine.asArray(engine.eval("dim(G)")));
+        assert Arrays.equals(engine.asArray(engine.eval("G[5001,]")), new double[]{5000, 10000, 15000}) : Arrays.toString(engine.asArray(engine.eval("G[5001,]")));
+    }
+
+    @Test
+    public void testGrowMatrixAliases() throws Rsession.RException {
+        engine.voidEval("X = matrix(c(1,1),1)");
+        engine.voidEval("X = rbind(X, c(1, 1))");
+
+        // aliases through function arguments and returns
+        engine.voidEval("id = function(m) {return(m)}");
+        engine.voidEval("Y = id(X)");
+        engine.voidEval("g = function(m) {m = rbind(m, c(0, 0)); return(nrow(m))}");
+        assert engine.asDouble(engine.eval("g(X)")) == 3 : engine.eval("g(X)");
+        assert engine.asDouble(engine.eval("nrow(X)")) == 2 : engine.eval("nrow(X)");
+
+        // aliases through list() and c()
+        engine.voidEval("L = list(a=X)");
+        engine.voidEval("r = c(2, 2)");
+        engine.voidEval("C = c(r)");
+        engine.voidEval("X = rbind(X, C)");
+        engine.voidEval("X = cbind(X, c(3, 3, 3))");
+        assert engine.asDouble(engine.eval("nrow(X)")) == 3 : engine.eval("nrow(X)");
+        assert engine.asDouble(engine.eval("ncol(X)")) == 3 : engine.eval("ncol(X)");
+        assert engine.asDouble(engine.eval("nrow(Y)")) == 2 : engine.eval("nrow(Y)");
+        assert engine.asDouble(engine.eval("ncol(Y)")) == 2 : engine.eval("ncol(Y)");
+        assert engine.asDouble(engine.eval("nrow(L$a)")) == 2 : engine.eval("nrow(L$a)");
+        engine.voidEval("r[1] = 7");
+        assert engine.asDouble(engine.eval("X[3,1]")) == 2 : engine.eval("X[3,1]");
+        assert engine.asDouble(engine.eval("C[1,1]")) == 2 : engine.eval("C[1,1]");
+
+        // rows are copied too
+        engine.voidEval("W = rbind(Y, c(4, 4))");
+        engine.voidEval("W[1,1] = 9");
+        assert engine.asDouble(engine.eval("Y[1,1]")) == 1 : engine.eval("Y[1,1]");
+        assert engine.asDouble(engine.eval("X[1,1]")) == 1 : engine.eval("X[1,1]");
+
+        // both aliases of a grown matrix append their own rows
+        engine.voidEval("A = matrix(c(0,0),1)");
+        engine.voidEval("for (i in 1:10) A = rbind(A, c(i, i))");
+        engine.voidEval("B = A");
+        engine.voidEval("A = rbind(A, c(-1, -1))");
+        engine.voidEval("B = rbind(B, c(-2, -2))");
+        engine.voidEval("B = rbind(B, c(-3, -3))");
+        engine.voidEval("A = rbind(A, c(-4, -4))");
+        assert Arrays.equals(engine.asArray(engine.eval("A[,1]")), new double[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, -1, -4}) : Arrays.toString(engine.asArray(engine.eval("A[,1]")));
+        assert Arrays.equals(engine.asArray(engine.eval("B[,1]")), new double[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, -2, -3}) : Arrays.toString(engine.asArray(engine.eval("B[,1]")));
+        assert Arrays.equals(engine.asArray(engine.eval("dim(B)")), new double[]{13, 2}) : Arrays.toString(engine.asArray(engine.eval("dim(B)")));
+
+        // appended statement evaluates to the matrix
+        assert Arrays.deepEquals(engine.asMatrix(engine.eval("B = rbind(B, c(-5, -6))")), engine.asMatrix(engine.eval("B"))) : engine.eval("B");
+        assert engine.asDouble(engine.eval("B[14,2]")) == -6 : engine.eval("B[14,2]");
+
+        // both forks of a grown matrix append their own rows
+        engine.copyGlobalEnv("grow1");
+        engine.copyGlobalEnv("grow2");
+        engine.setGlobalEnv("grow1");
+        engine.voidEval("A = rbind(A, c(1, 1))");
+        engine.setGlobalEnv("grow2");
+        engine.voidEval("A = rbind(A, c(2, 2))");
+        engine.voidEval("A = rbind(A, c(2, 2))");
+        engine.setGlobalEnv("grow1");
+        engine.voidEval("A = rbind(A, c(1, 1))");
+        assert Arrays.equals(engine.asArray(engine.eval("A[,2]")), new double[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, -1, -4, 1, 1}) : Arrays.toString(engine.asArray(engine.eval("A[,2]")));
+        engine.setGlobalEnv("grow2");
+        assert Arrays.equals(engine.asArray(engine.eval("A[,2]")), new double[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, -1, -4, 2, 2}) : Arrays.toString(engine.asArray(engine.eval("A[,2]")));
+        engine.setGlobalEnv(null);
+        assert engine.asDouble(engine.eval("nrow(A)")) == 13 : engine.eval("nrow(A)");
+
+        // grown matrix is replaced or removed as any variable
+        engine.voidEval("B = 5");
+        assert engine.asDouble(engine.eval("B")) == 5 : engine.eval("B");
+        engine.voidEval("B = rbind(B, 6)");
+        assert Arrays.equals(engine.asArray(engine.eval("dim(B)")), new double[]{2, 1}) : Arrays.toString(engine.asArray(engine.eval("dim(B)")));
+        assert engine.asDouble(engine.eval("B[2,1]")) == 6 : engine.eval("B[2,1]");
+        engine.rm("A");
+        assert !engine.asLogical(engine.eval("exists('A')")) : engine.eval("exists('A')");
+    }
+
+    @Test
+    public void testVectorBuiltins() throws Exception {
+        engine.voidEval("x = c(3,1,2,1,3)");
+        engine.voidEval("M = matrix(c(1,2,3,4,5,6),nrow=2)");
+        engine.voidEval("s = c('a','b')");
+        String[] exprs = new String[]{"rep(x,2)", "rep(4,3)", "rep(s,2)", "rep_len(x,7)", "which(x>1)", "which(c(TRUE,1,'TRUE',TRUE))",
+            "which.min(x)", "which.max(x)", "all(x>0)", "all(x>1)", "any(x>2)", "any(x>3)", "all(c(1,TRUE))",
+            "paste(s,1:2,collapse='+')", "paste('x',1.5)", "paste0(s,'.',TRUE)", "apply(M,1,function(v) {sum(v)})", "apply(M,2,function(v) {sum(v)})", "apply(M,2,function(v) {v})"};
+        for (String expr : exprs) {
+            engine.js.eval("__R.useJavaVectors(false)");
+            String js = Arrays.deepToString(new Object[]{engine.eval(expr)});
+            engine.js.eval("__R.useJavaVectors(true)");
+            String java = Arrays.deepToString(new Object[]{engine.eval(expr)});
+            assert js.equals(java) : expr + ": " + js + " != " + java;
+        }
+
+        // benchmark of js and java implementations
+        engine.voidEval("y = runif(1000)");
+        for (String expr : new String[]{"rep(y,2)", "which(y>0.5)", "which.max(y)", "any(y>2)", "paste(1:200,collapse=',')"}) {
+            for (boolean java : new boolean[]{false, true}) {
+                engine.js.eval("__R.useJavaVectors(" + java + ")");
+                long start = System.currentTimeMillis();
+                engine.voidEval("r = " + expr);
+                System.err.println(expr + (java ? " (java): " : " (js): ") + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+    }
+
     @Test
     public void testInIndexNotSupported() {
         try {
@@ -970,6 +1202,206 @@ public class R2jsSessionTest {
         assert (double) engine.eval("fun(0.123)") == 0.123 : engine.eval("fun(0.123)");
     }
 
+    @Test
+    public void testSourceTranslationCache() throws Rsession.RException {
+        File dir = new File("R2JsCache" + Math.random());
+        Properties p = new Properties();
+        p.setProperty(R2jsSession.TRANSLATION_CACHE_PROPERTY, dir.getPath());
+        try {
+            R2jsSession s1 = R2jsSession.newInstance(new RLogSlf4j(), p);
+            s1.source(new File("src/test/R/test.R"));
+            assert dir.list().length == 1 : Arrays.toString(dir.list());
+            File cache = dir.listFiles()[0];
+            long written = cache.lastModified();
+
+            // translations are taken from cache file
+            R2jsSession s2 = R2jsSession.newInstance(new RLogSlf4j(), p);
+            s2.source(new File("src/test/R/test.R"));
+            assert dir.list().length == 1 : Arrays.toString(dir.list());
+            assert cache.lastModified() == written;
+            assertEquals((Double) s2.eval("a + b"), 3, epsilon);
+            assertEquals((Double) s2.eval("f(1) + g(1) + h(1)"), 9, epsilon);
+            assert s2.ls().length == s1.ls().length : Arrays.toString(s2.ls());
+
+            // another scope is another translation
+            s2.voidEval("x = 1");
+            s2.source(new File("src/test/R/test.R"));
+            assert dir.list().length == 2 : Arrays.toString(dir.list());
+
+            // even with names of same hash code ("Aa" and "BB")
+            R2jsSession s3 = R2jsSession.newInstance(new RLogSlf4j(), p);
+            s3.voidEval("Aa = 1");
+            s3.source(new File("src/test/R/test.R"));
+            R2jsSession s4 = R2jsSession.newInstance(new RLogSlf4j(), p);
+            s4.voidEval("BB = 1");
+            s4.source(new File("src/test/R/test.R"));
+            assert dir.list().length == 4 : Arrays.toString(dir.list());
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSourceStatements() throws Exception {
+        File r = new File("R2JsSource" + Math.random() + ".R");
+        File f = new File("R2Js" + Math.random() + ".json");
+        r.deleteOnExit();
+        f.deleteOnExit();
+        int n = 1000;
+        StringBuilder sb = new StringBuilder("x = 0\nf = function(y) {\n  return(y + 1)\n}\n");
+        for (int i = 0; i < n; i++) {
+            sb.append("x = f(x)\n");
+        }
+        // twice is checked in the js engine by the translation of g, which is so deferred to the evaluating thread
+        sb.append("g = function(y) {\n  return(twice(y))\n}\ntwice = function(y) {\n  return(2 * y)\n}\nw = g(3)\n");
+        // load() is translated after the statements saving the file are evaluated
+        sb.append("s = 'abc'; save(file='").append(f.getAbsolutePath().replace('\\', '/')).append("', list='s', ascii=TRUE)\n");
+        sb.append("s = 'def'\nload('").append(f.getAbsolutePath().replace('\\', '/')).append("')\nu = s\n");
+        FileUtils.writeStringToFile(r, sb.toString(), "UTF-8");
+
+        final List<Integer> statements = new ArrayList<>();
+        final long[] times = new long[2];
+        EvalListener l = new EvalListener() {
+            @Override
+            public void eval(String e) {
+            }
+
+            @Override
+            public void sourced(File file, int statement, String e, long translationTime, long evaluationTime) {
+                statements.add(statement);
+                times[0] += translationTime;
+                times[1] += evaluationTime;
+            }
+        };
+        boolean ahead = R2jsSession.translateSourcedAhead;
+        engine.addEvalListener(l);
+        try {
+            for (boolean b : new boolean[]{false, true}) {
+                R2jsSession.translateSourcedAhead = b;
+                engine.rmAll();
+                statements.clear();
+                times[0] = times[1] = 0;
+                long start = System.currentTimeMillis();
+                engine.source(r);
+                System.err.println("source" + (b ? " (translating ahead)" : "") + ": " + (System.currentTimeMillis() - start) + " ms (translation " + times[0] + " ms, evaluation " + times[1] + " ms)");
+
+                assertEquals((Double) engine.eval("x"), n, epsilon);
+                assertEquals(engine.asString(engine.eval("u")), "abc");
+                assertEquals((Double) engine.eval("w"), 6, epsilon);
+                assertEquals(statements.size(), n + 10);
+                for (int i = 0; i < statements.size(); i++) {
+                    assertEquals((int) statements.get(i), i + 1);
+                }
+            }
+        } finally {
+            R2jsSession.translateSourcedAhead = ahead;
+            engine.removeEvalListener(l);
+        }
+    }
+
+    @Test
+    public void testSaveAndLoadSnapshot() throws Rsession.RException {
+        File f = new File("R2Js" + Math.random() + ".save");
+        f.deleteOnExit();
+
+        double[] x = new double[100000];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = Math.sqrt(i);
+        }
+        engine.set("x", x);
+        engine.set("m", new double[][]{{1, 2}, {3, 4}, {5, 6}}, "a", "b");
+        engine.set("s", "abcdef");
+        engine.voidEval("f = function(y) {return(y+1)}");
+        engine.voidEval("l = list(u=1,v='w')");
+        engine.save(f, "x", "m", "s", "f", "l");
+        assert R2jsSnapshot.isSnapshot(f.getAbsolutePath()) : "Not a snapshot";
+        engine.rmAll();
+
+        engine.load(f);
+        String[] ls = engine.ls();
+        Arrays.sort(ls);
+        assert Arrays.equals(ls, new String[]{"f", "l", "m", "s", "x"}) : Arrays.toString(ls);
+        assert Arrays.equals(engine.asArray(engine.eval("x")), x) : "bad restore of x";
+        assert Arrays.deepEquals(engine.asMatrix(engine.eval("m")), new double[][]{{1, 2}, {3, 4}, {5, 6}}) : "bad restore of m";
+        assert Arrays.equals(engine.asStrings(engine.eval("names(m)")), new String[]{"a", "b"}) : engine.eval("names(m)");
+        assert engine.asDouble(engine.eval("m[3,2]")) == 6 : engine.eval("m[3,2]");
+        assert engine.asString(engine.eval("s")).equals("abcdef") : "bad restore of s";
+        assert engine.asDouble(engine.eval("f(1)")) == 2 : engine.eval("f(1)");
+        assert engine.asString(engine.eval("l$v")).equals("w") : engine.eval("l$v");
+
+        // json files are still loaded
+        engine.voidEval("save(file='" + f.getAbsolutePath().replace('\\', '/') + "', list='s', ascii=TRUE)");
+        assert !R2jsSnapshot.isSnapshot(f.getAbsolutePath()) : "Not a json file";
+        engine.rm("s");
+        engine.load(f);
+        assert engine.asString(engine.eval("s")).equals("abcdef") : "bad restore of s";
+    }
+
+    @Test
+    public void testCopyGlobalEnv() throws Rsession.RException {
+        engine.voidEval("a = 1");
+        engine.voidEval("b = c(1,2,3)");
+        engine.voidEval("f = function(x) {return(x+a)}");
+        engine.copyGlobalEnv("fork");
+
+        // changes after the copy are not seen by the other env
+        engine.voidEval("a = 2");
+        engine.setGlobalEnv("fork");
+        assert engine.asDouble(engine.eval("a")) == 1 : engine.eval("a");
+        assert engine.asDouble(engine.eval("f(1)")) == 2 : engine.eval("f(1)");
+        engine.voidEval("b = 0");
+        engine.rm("a");
+        assert !engine.asLogical(engine.eval("exists('a')")) : "a not removed";
+        String[] ls = engine.ls();
+        Arrays.sort(ls);
+        assert Arrays.equals(ls, new String[]{"b", "f"}) : Arrays.toString(ls);
+        assert engine.asStrings(engine.eval("ls(pattern='b')")).length == 1 : Arrays.toString(engine.asStrings(engine.eval("ls(pattern='b')")));
+
+        engine.setGlobalEnv(null);
+        assert engine.asDouble(engine.eval("a")) == 2 : engine.eval("a");
+        assert engine.asDouble(engine.eval("f(1)")) == 3 : engine.eval("f(1)");
+        assert Arrays.equals(engine.asArray(engine.eval("b")), new double[]{1, 2, 3}) : Arrays.toString(engine.asArray(engine.eval("b")));
+        assert engine.asLogical(engine.eval("exists('a')")) : "a removed";
+
+        // many nested copies
+        for (int i = 0; i < 40; i++) {
+            engine.voidEval("a = " + i);
+            engine.copyGlobalEnv("fork" + i);
+            engine.setGlobalEnv("fork" + i);
+        }
+        assert engine.asDouble(engine.eval("a")) == 39 : engine.eval("a");
+        assert Arrays.equals(engine.asArray(engine.eval("b")), new double[]{1, 2, 3}) : Arrays.toString(engine.asArray(engine.eval("b")));
+        engine.setGlobalEnv("fork10");
+        assert engine.asDouble(engine.eval("a")) == 11 : engine.eval("a");
+        engine.setGlobalEnv("fork");
+        assert engine.asDouble(engine.eval("b")) == 0 : engine.eval("b");
+        engine.setGlobalEnv(null);
+    }
+
+    @Test
+    public void testCopyGlobalEnvTwice() throws Rsession.RException {
+        // same environment forked many times: later assignments are not seen by previous forks
+        engine.voidEval("x = 1");
+        for (int i = 1; i <= 20; i++) {
+            engine.copyGlobalEnv("f" + i);
+            engine.voidEval("z" + i + " = " + i);
+        }
+        for (int i = 1; i <= 20; i++) {
+            engine.setGlobalEnv("f" + i);
+            assertEquals((Double) engine.eval("x"), 1.0, epsilon);
+            for (int j = 1; j <= 20; j++) {
+                assertEquals("z" + j + " in f" + i, j < i, engine.asLogical(engine.eval("exists('z" + j + "')")));
+            }
+        }
+        engine.setGlobalEnv(null);
+        for (int j = 1; j <= 20; j++) {
+            assertEquals((Double) engine.eval("z" + j), j, epsilon);
+        }
+    }
+
     @Test
     public void testSaveGlobalEnv() throws Rsession.RException {
         engine.debug_js = true;
@@ -1412,4 +1844,317 @@ public class R2jsSessionTest {
         }
 
     }
+
+    @Test
+    public void testTranslationCache() throws Rsession.RException {
+        engine.voidEval("x <- 1");
+        long hits = engine.translationCache.getHits();
+        for (int i = 0; i < 10; i++) {
+            engine.voidEval("x <- x + 1");
+        }
+        assertEquals((Double) engine.eval("x"), 11.0, epsilon);
+        assertTrue("Translation cache not used: " + engine.translationCache, engine.translationCache.getHits() >= hits + 9);
+
+        // new variable changes the scope, so the translation must be done again
+        engine.voidEval("f <- function(y) {y + x}");
+        assertEquals((Double) engine.eval("f(1)"), 12.0, epsilon);
+        engine.voidEval("y <- 100");
+        assertEquals((Double) engine.eval("f(1)"), 12.0, epsilon);
+        assertEquals((Double) engine.eval("y"), 100.0, epsilon);
+
+        // cached translation must still declare its variables
+        engine.rmAll();
+        engine.voidEval("x <- 1");
+        assertTrue(Arrays.asList(engine.ls()).contains("x"));
+
+        // scopes with different names of same hash code ("Aa" and "BB") do not share translations
+        engine.rmAll();
+        engine.voidEval("BB <- 2");
+        try {
+            engine.eval("Aa");
+            fail("Aa is not defined");
+        } catch (Rsession.RException e) {
+        }
+        engine.rm("BB");
+        engine.voidEval("Aa <- 1");
+        assertEquals((Double) engine.eval("Aa"), 1.0, epsilon);
+    }
+
+    @Test
+    public void testCompiledScriptCache() throws Rsession.RException {
+        int maxSize = engine.compiledScriptCache.getMaxSize();
+        R2jsSession engine2 = R2jsSession.newInstance(new RLogSlf4j(), null);
+        try {
+            // sessions of the same js engine share their compiled scripts
+            assertTrue(engine.compiledScriptCache == engine2.compiledScriptCache);
+
+            // a script compiled in one session is evaluated in the global scope of the other
+            engine.voidEval("cs <- 1");
+            engine2.voidEval("cs <- 2");
+            int size = engine.compiledScriptCache.size();
+            long hits = engine.compiledScriptCache.getHits();
+            engine.voidEval("cs <- cs * 10");
+            assertEquals(engine.compiledScriptCache.size(), size + 1);
+            engine2.voidEval("cs <- cs * 10");
+            assertEquals(engine.compiledScriptCache.size(), size + 1);
+            assertTrue("Compiled script not shared: " + engine.compiledScriptCache, engine.compiledScriptCache.getHits() >= hits + 1);
+            assertEquals((Double) engine.eval("cs"), 10.0, epsilon);
+            assertEquals((Double) engine2.eval("cs"), 20.0, epsilon);
+
+            // same result without cache
+            engine.compiledScriptCache.setMaxSize(0);
+            engine2.voidEval("cs <- cs * 10");
+            assertEquals((Double) engine2.eval("cs"), 200.0, epsilon);
+            assertEquals((Double) engine.eval("cs"), 10.0, epsilon);
+            assertEquals(engine.compiledScriptCache.size(), 0);
+        } finally {
+            engine.compiledScriptCache.setMaxSize(maxSize);
+        }
+    }
+
+    @Test
+    public void testSharedEngine() throws Rsession.RException {
+        R2jsSession engine2 = R2jsSession.newInstance(new RLogSlf4j(), null);
+        assertTrue(((R2jsScriptEngine) engine.js).engine == ((R2jsScriptEngine) engine2.js).engine);
+
+        // but each session has its own variables and working dir
+        engine.voidEval("a <- 1");
+        engine2.voidEval("a <- 2");
+        engine2.voidEval("b <- 3");
+        assertEquals((Double) engine.eval("a"), 1.0, epsilon);
+        assertEquals((Double) engine2.eval("a"), 2.0, epsilon);
+        assertFalse(Arrays.asList(engine.ls()).contains("b"));
+        assertFalse(engine.getwd().equals(engine2.getwd()));
+
+        // engine options given in properties are not set as variables
+        Properties p = new Properties();
+        p.setProperty(R2jsSession.ENGINE_OPTIONS_PROPERTY, "--optimistic-types=false");
+        R2jsSession engine3 = R2jsSession.newInstance(new RLogSlf4j(), p);
+        assertFalse(((R2jsScriptEngine) engine.js).engine == ((R2jsScriptEngine) engine3.js).engine);
+        assertEquals((Double) engine3.eval("1+1"), 2.0, epsilon);
+        assertEquals(engine3.ls().length, 0);
+    }
+
+    @Test
+    public void testEngineCodeCache() throws Exception {
+        File dir1 = new File("R2JsCodeCache" + Math.random());
+        File dir2 = new File("R2JsCodeCache" + Math.random());
+        String property = System.getProperty("nashorn.persistent.code.cache");
+        try {
+            Properties p = new Properties();
+            p.setProperty(R2jsSession.ENGINE_CODE_CACHE_PROPERTY, dir1.getPath());
+            R2jsSession s1 = R2jsSession.newInstance(new RLogSlf4j(), p);
+            R2jsSession s1bis = R2jsSession.newInstance(new RLogSlf4j(), p);
+            p.setProperty(R2jsSession.ENGINE_CODE_CACHE_PROPERTY, dir2.getPath());
+            R2jsSession s2 = R2jsSession.newInstance(new RLogSlf4j(), p);
+
+            // sessions with same directory share their engine, not the others
+            assertTrue(((R2jsScriptEngine) s1.js).engine == ((R2jsScriptEngine) s1bis.js).engine);
+            assertFalse(((R2jsScriptEngine) s1.js).engine == ((R2jsScriptEngine) s2.js).engine);
+            assertFalse(((R2jsScriptEngine) s1.js).engine == ((R2jsScriptEngine) engine.js).engine);
+            assertTrue("No code cache in " + dir1, dir1.isDirectory());
+            assertTrue("No code cache in " + dir2, dir2.isDirectory());
+
+            // the jvm property is not changed
+            assertEquals(System.getProperty("nashorn.persistent.code.cache"), property);
+
+            assertEquals((Double) s1.eval("1+1"), 2.0, epsilon);
+            assertEquals((Double) s2.eval("1+2"), 3.0, epsilon);
+        } finally {
+            FileUtils.deleteDirectory(dir1);
+            FileUtils.deleteDirectory(dir2);
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        // calls of a session are evaluated in order
+        List<CompletableFuture<Object>> values = new ArrayList<>();
+        engine.setAsync("x", 0.0);
+        for (int i = 1; i <= 100; i++) {
+            engine.voidEvalAsync("x <- x + " + i);
+            values.add(engine.evalAsync("x"));
+        }
+        for (int i = 1; i <= 100; i++) {
+            assertEquals((Double) values.get(i - 1).get(), i * (i + 1) / 2.0, epsilon);
+        }
+
+        // composed with calls of another session, using its own executor
+        R2jsSession engine2 = R2jsSession.newInstance(new RLogSlf4j(), null);
+        final int[] executed = {0};
+        engine2.asyncExecutor = new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                executed[0]++;
+                new Thread(r).start();
+            }
+        };
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("y", 2.0);
+        engine2.setAsync(vars);
+        CompletableFuture<Object> sum = engine.evalAsync("x").thenCombine(engine2.evalAsync("y"), new BiFunction<Object, Object, Object>() {
+            @Override
+            public Object apply(Object x, Object y) {
+                return (Double) x + (Double) y;
+            }
+        });
+        assertEquals((Double) sum.get(10, TimeUnit.SECONDS), 5052.0, epsilon);
+        assertEquals(executed[0], 2);
+
+        // failures are given by futures, and do not stop the next calls
+        CompletableFuture<Object> error = engine.evalAsync("stop('!!!')");
+        CompletableFuture<Object> next = engine.evalAsync("x");
+        try {
+            error.get();
+            fail("Error not detected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RException);
+        }
+        assertEquals((Double) next.get(), 5050.0, epsilon);
+    }
+
+    @Test
+    public void testSetLargeArrays() throws Rsession.RException {
+        int n = 10000;
+        double[][] X = new double[n][3];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            X[i] = new double[]{i, Math.PI * i, 1.0 / (i + 1)};
+            y[i] = Math.sqrt(i);
+        }
+        X[1][2] = Double.NaN;
+
+        assertTrue(engine.set("X", X, "a", "b", "c"));
+        assertTrue(engine.set("y", y));
+        assertTrue(Arrays.asList(engine.ls()).containsAll(Arrays.asList("X", "y")));
+        assertArrayEquals((String[]) engine.eval("names(X)"), new String[]{"a", "b", "c"});
+        assertArrayEquals(engine.asArray(engine.eval("dim(X)")), new double[]{n, 3}, epsilon);
+        assertEquals((Double) engine.eval("X[" + n + ",2]"), Math.PI * (n - 1), epsilon);
+        assertTrue(Double.isNaN((Double) engine.eval("X[2,3]")));
+        assertArrayEquals(engine.asMatrix(engine.eval("X"))[n - 1], X[n - 1], epsilon);
+        assertArrayEquals(engine.asArray(engine.eval("y")), y, epsilon);
+
+        assertTrue(engine.set("Z", (Object) X));
+        assertArrayEquals((String[]) engine.eval("names(Z)"), new String[]{"X1", "X2", "X3"});
+        assertEquals((Double) engine.eval("Z[10,1]"), 9.0, epsilon);
+    }
+
+    @Test
+    public void testCastArrays() throws Rsession.RException, ScriptException {
+        engine.voidEval("y <- runif(100000)");
+        Object y = engine.eval("y");
+        assertTrue(y instanceof double[]);
+        assertEquals(((double[]) y).length, 100000);
+
+        // not only numbers: still casted as before
+        assertArrayEquals((String[]) engine.cast(engine.js.eval("[1,'a']")), new String[]{"1", "a"});
+        assertArrayEquals((double[]) engine.cast(engine.js.eval("['1','2']")), new double[]{1, 2}, epsilon);
+
+        // matrix directly from js object
+        Object X = engine.js.eval("[[1,2,3],[4,5,6]]");
+        assertArrayEquals(engine.asMatrix(X)[1], new double[]{4, 5, 6}, epsilon);
+        assertArrayEquals(engine.asMatrix(engine.js.eval("[1,2]"))[1], new double[]{2}, epsilon);
+
+        int[] dim = new int[2];
+        assertArrayEquals(engine.asColumnMajorArray(X, dim), new double[]{1, 4, 2, 5, 3, 6}, epsilon);
+        assertArrayEquals(dim, new int[]{2, 3});
+        assertArrayEquals(engine.asColumnMajorArray(engine.js.eval("[1,2]"), dim), new double[]{1, 2}, epsilon);
+        assertArrayEquals(dim, new int[]{2, 1});
+        assertArrayEquals(engine.asColumnMajorArray(new double[][]{{1, 2}, {3, 4}}, null), new double[]{1, 3, 2, 4}, epsilon);
+        assertNull(engine.asColumnMajorArray(null, dim));
+    }
+
+    @Test
+    public void testConcurrentEnvironments() throws Exception {
+        Properties p = new Properties();
+        p.setProperty(R2jsSession.CONCURRENT_ENVIRONMENTS_PROPERTY, "true");
+        final R2jsSession session = R2jsSession.newInstance(new RLogSlf4j(), p);
+        assertEquals(session.ls().length, 0);
+
+        // same semantics as environments sharing the js global scope
+        double v = 123.456;
+        assertTrue(session.set("v", v));
+        assertTrue(session.voidEval("f2 = function(x) {return(1-x)}"));
+        assertTrue(session.voidEval("f1 = function(x) {return(f2(x))}"));
+        session.copyGlobalEnv("myenv");
+        assertTrue(session.rmAll());
+        session.setGlobalEnv("myenv");
+        assertEquals(session.getGlobalEnv(), "myenv");
+        String[] ls = session.ls();
+        Arrays.sort(ls);
+        assertArrayEquals(ls, new String[]{"f1", "f2", "v"});
+        assertEquals((Double) session.eval("f1(v)"), 1 - v, epsilon);
+        session.setGlobalEnv("myenv2");
+        assertEquals(session.ls().length, 0);
+        session.setGlobalEnv(null);
+        assertEquals(session.ls().length, 0);
+
+        // threads working in different environments
+        final int n = 4;
+        final Object[] results = new Object[n];
+        Thread[] threads = new Thread[n];
+        for (int t = 0; t < n; t++) {
+            final int i = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.setGlobalEnv("thread" + i);
+                        session.voidEval("s <- 0");
+                        for (int k = 0; k < 100; k++) {
+                            session.voidEval("s <- s + " + i);
+                        }
+                        results[i] = session.eval("s");
+                    } catch (Exception e) {
+                        results[i] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals((Double) results[i], 100.0 * i, epsilon);
+        }
+        assertEquals(session.getGlobalEnv(), "r2js");
+        assertFalse(Arrays.asList(session.ls()).contains("s"));
+    }
+
+    @Test
+    public void testRandomSeed() throws Rsession.RException {
+        engine.voidEval("set.seed(123)");
+        double[] x = (double[]) engine.eval("runif(10, 1, 2)");
+        engine.voidEval("set.seed(123)");
+        assertArrayEquals((double[]) engine.eval("runif(10, 1, 2)"), x, 0);
+        for (double xi : x) {
+            assertTrue(xi >= 1 && xi < 2);
+        }
+
+        // each session has its own generator
+        R2jsSession engine2 = R2jsSession.newInstance(new RLogSlf4j(), null);
+        engine2.voidEval("set.seed(123)");
+        engine.voidEval("y <- runif(10)");
+        assertArrayEquals((double[]) engine2.eval("runif(10, 1, 2)"), x, 0);
+
+        assertEquals((Double) engine.eval("mean(rnorm(100000, 2, 3))"), 2, 0.05);
+        assertEquals((Double) engine.eval("mean(rpois(100000, 3))"), 3, 0.05);
+        assertEquals((Double) engine.eval("mean(rpois(100000, 300))"), 300, 0.5);
+        assertEquals((Double) engine.eval("mean(rchisq(100000, 4))"), 4, 0.1);
+        assertEquals((Double) engine.eval("median(rcauchy(100001, 1, 2))"), 1, 0.1);
+        assertEquals((Double) engine.eval("length(rnorm(3))"), 3, 0);
+    }
+
+    @Test
+    public void testManyVariables() throws Rsession.RException {
+        int n = 5000;
+        for (int i = 0; i < n; i++) {
+            assertTrue(engine.set("v" + i, (double) i));
+        }
+        engine.voidEval("f <- function(x, y=1) {return(x - y + v10)}");
+        assertEquals((Double) engine.eval("f(v" + (n - 1) + ", y = v2)"), n - 1 - 2 + 10, epsilon);
+        assertEquals((Double) engine.eval("f(1)"), 10, epsilon);
+        assertEquals((Double) engine.eval("v1 + v" + (n / 2)), 1 + n / 2, epsilon);
+    }
 }
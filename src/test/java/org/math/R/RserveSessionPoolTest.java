@@ -0,0 +1,222 @@
+package org.math.R;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import org.math.R.Rsession.RException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the pool logic with stub sessions (not connected to any Rserve)
+ */
+public class RserveSessionPoolTest {
+
+    // closed port, so sessions do not connect
+    static final int NO_PORT = 1;
+
+    static class StubSession extends RserveSession {
+
+        boolean ended = false;
+        boolean broken = false;
+        int resets = 0;
+
+        StubSession(RserverConf conf) {
+            super(new RLogSlf4j(), null, conf);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return !ended;
+        }
+
+        @Override
+        public boolean reset() {
+            resets++;
+            return !broken;
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+        }
+    }
+
+    static class StubPool extends RserveSessionPool {
+
+        StubPool(int maxSize, RserverConf... servers) {
+            super(new RLogSlf4j(), null, maxSize, servers);
+        }
+
+        @Override
+        protected RserveSession newSession(RserverConf server) {
+            StubSession s = new StubSession(new RserverConf("localhost", NO_PORT, null, null));
+            s.RserveConf = server;
+            return s;
+        }
+
+        @Override
+        protected boolean isHealthy(RserveSession s) {
+            return s.isAvailable() && !((StubSession) s).broken;
+        }
+    }
+
+    @Test
+    public void testCheckoutRelease() throws RException {
+        RserverConf a = new RserverConf("a", 6311, null, null);
+        RserverConf b = new RserverConf("b", 6311, null, null);
+        StubPool pool = new StubPool(4, a, b);
+
+        // sessions are spread over servers
+        Set<RserveSession> sessions = new HashSet<>();
+        int onA = 0;
+        for (int i = 0; i < 4; i++) {
+            RserveSession s = pool.checkout();
+            sessions.add(s);
+            if (s.RserveConf == a) {
+                onA++;
+            }
+        }
+        assertEquals(sessions.size(), 4);
+        assertEquals(onA, 2);
+        assertEquals(pool.getBusy(), 4);
+        assertEquals(pool.getUtilisation(), 1.0, 1e-9);
+
+        // released sessions are reset and reused
+        RserveSession s = sessions.iterator().next();
+        pool.release(s);
+        assertEquals(((StubSession) s).resets, 1);
+        assertEquals(pool.getIdle(), 1);
+        assertTrue(pool.checkout() == s);
+        assertEquals(pool.getCreated(), 4);
+        assertEquals(pool.getCheckouts(), 5);
+        assertEquals(pool.getMaxBusy(), 4);
+
+        try {
+            pool.release(new StubSession(new RserverConf("localhost", NO_PORT, null, null)));
+            fail("Session is not from the pool");
+        } catch (IllegalArgumentException e) {
+        }
+
+        for (RserveSession r : sessions) {
+            pool.release(r);
+        }
+        pool.close();
+        for (RserveSession r : sessions) {
+            assertTrue(((StubSession) r).ended);
+        }
+        try {
+            pool.checkout();
+            fail("Pool is closed");
+        } catch (RException e) {
+        }
+    }
+
+    @Test
+    public void testWaitTimeout() throws Exception {
+        final StubPool pool = new StubPool(1);
+        pool.waitTimeout = 200;
+        final RserveSession s = pool.checkout();
+
+        long start = System.currentTimeMillis();
+        try {
+            pool.checkout();
+            fail("No session should be available");
+        } catch (RException e) {
+        }
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(pool.getTimeouts(), 1);
+
+        // released by another thread while waiting
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                pool.release(s);
+            }
+        }).start();
+        assertTrue(pool.checkout() == s);
+        assertTrue(pool.getMaxCheckoutTime() >= 40);
+        System.err.println(pool);
+    }
+
+    @Test
+    public void testBrokenSessions() throws RException {
+        StubPool pool = new StubPool(2);
+        pool.fill(2);
+        assertEquals(pool.getIdle(), 2);
+        assertEquals(pool.getCreated(), 2);
+
+        // broken idle sessions are replaced
+        RserveSession s = pool.checkout();
+        pool.release(s);
+        ((StubSession) s).broken = true;
+        pool.idleCheckTime = 0;
+        pool.checkIdle();
+        assertTrue(((StubSession) s).ended);
+        assertEquals(pool.getDiscarded(), 1);
+        assertEquals(pool.getIdle(), 2);
+        assertEquals(pool.getCreated(), 3);
+
+        // also when checked out after idleCheckTime
+        RserveSession t = pool.checkout();
+        pool.release(t);
+        ((StubSession) t).broken = true;
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+        }
+        assertFalse(pool.checkout() == t);
+        assertEquals(pool.getDiscarded(), 2);
+
+        // sessions which cannot be reset are not reused
+        RserveSession u = pool.checkout();
+        ((StubSession) u).broken = true;
+        pool.release(u);
+        assertTrue(((StubSession) u).ended);
+        assertEquals(pool.getDiscarded(), 3);
+        assertEquals(pool.size(), 1);
+    }
+
+    @Test
+    public void testCheckIdleWithBusySessions() throws RException {
+        final int[] busyWhileChecking = {-1};
+        final StubPool pool = new StubPool(4) {
+            @Override
+            protected boolean isHealthy(RserveSession s) {
+                busyWhileChecking[0] = getBusy();
+                return super.isHealthy(s);
+            }
+        };
+        RserveSession s1 = pool.checkout();
+        RserveSession s2 = pool.checkout();
+        pool.fill(4);
+        assertEquals(pool.getIdle(), 2);
+
+        // broken idle sessions are replaced, even if other sessions are checked out
+        RserveSession i1 = pool.checkout();
+        RserveSession i2 = pool.checkout();
+        pool.release(i1);
+        pool.release(i2);
+        ((StubSession) i1).broken = true;
+        ((StubSession) i2).broken = true;
+        pool.checkIdle();
+        assertTrue(((StubSession) i1).ended && ((StubSession) i2).ended);
+        assertEquals(pool.getDiscarded(), 2);
+        assertEquals(pool.getIdle(), 2);
+        assertEquals(pool.size(), 4);
+        assertEquals(pool.getCreated(), 6);
+
+        // checked sessions are not counted as checked out
+        assertEquals(busyWhileChecking[0], 2);
+        assertEquals(pool.getBusy(), 2);
+        assertEquals(pool.getUtilisation(), 0.5, 1e-9);
+
+        pool.release(s1);
+        pool.release(s2);
+        pool.close();
+    }
+}
@@ -15,6 +15,7 @@ import java.io.Reader;
 import java.io.Writer;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import org.apache.commons.io.FileUtils;
@@ -64,6 +65,61 @@ public class RserveSessionTest {
         assert error : "Error not detected";
     }
 
+    @Test
+    public void testEvalBatch() throws Exception {
+        System.err.println("====================================== testEvalBatch");
+
+        List<RserveSession.BatchResult> r = s.evalBatch(Arrays.asList("x <- 1:3", "print('a\\'b')", "message('m')", "sum(x)", "stop('!!!')", "y <- 2"));
+        assert r.size() == 6 : r.size();
+        assert r.get(0).value == null && r.get(0).error == null : r.get(0).value;
+        assert r.get(1).output.contains("a'b") : r.get(1).output;
+        assert r.get(2).message.equals("m") : r.get(2).message;
+        assert s.asInteger(r.get(3).value) == 6 : r.get(3).value;
+        assert r.get(4).error != null && r.get(4).error.contains("!!!") : r.get(4).error;
+        assert s.asInteger(s.eval("y")) == 2 : "Expressions after an error are evaluated";
+
+        r = s.evalBatch(Arrays.asList("z <- 1", "stop('!!!')", "z <- 2"), true);
+        assert r.size() == 2 : r.size();
+        assert s.asInteger(s.eval("z")) == 1 : "Expressions after an error are not evaluated";
+    }
+
+    @Test
+    public void testCapturedOutput() throws Exception {
+        System.err.println("====================================== testCapturedOutput");
+
+        assert s.asDouble(s.eval("cat('out'); message('msg'); 1+1")) == 2;
+        assert s.getLastOutput().equals("out") : "Wrong LastOutput: " + s.getLastOutput();
+        assert s.getLastError().equals("msg") : "Wrong LastError: " + s.getLastError();
+        assert !s.asLogical(s.eval("file.exists('rout.txt')")) : "Output written to a sink file";
+
+        s.voidEval("print('void')");
+        assert s.getLastOutput().contains("void") : "Wrong LastOutput: " + s.getLastOutput();
+        boolean error = false;
+        try {
+            s.voidEval("stop('!!!')");
+        } catch (Exception e) {
+            error = true;
+        }
+        assert error : "Error not detected";
+        assert s.getLastError().contains("!!!") : "Wrong LastError: " + s.getLastError();
+
+        // still captured after all objects were removed
+        s.rmAll(true);
+        s.voidEval("cat('again')");
+        assert s.getLastOutput().equals("again") : "Wrong LastOutput: " + s.getLastOutput();
+
+        // another session does not share captured output
+        RserveSession s2 = new RserveSession(new RLogSlf4j(), null, s.RserveConf);
+        try {
+            s2.voidEval("cat('s2')");
+            s.voidEval("cat('s')");
+            assert s2.getLastOutput().equals("s2") : "Wrong LastOutput: " + s2.getLastOutput();
+            assert s.getLastOutput().equals("s") : "Wrong LastOutput: " + s.getLastOutput();
+        } finally {
+            s2.end();
+        }
+    }
+
     @Test
     public void testPrintIn() throws Exception {
         System.err.println("====================================== testPrintIn");
@@ -336,6 +392,29 @@ public class RserveSessionTest {
         assert Arrays.equals((double[]) s.proxyEval("A", null), A) : "variable A changed";
     }
 
+    @Test
+    public void testSetMatrix() throws Exception {
+        System.err.println("====================================== testSetMatrix");
+
+        double[][] M = new double[][]{{1, 2, 3}, {4, 5, 6}};
+        s.set("M", M);
+        assert Arrays.equals(s.asIntegers(s.eval("dim(M)")), new int[]{2, 3}) : "Wrong dim";
+        assert s.asDouble(s.eval("M[2,3]")) == 6 : "Wrong M[2,3]";
+        assert Arrays.deepEquals(s.asMatrix(s.eval("M")), M) : "variable M changed";
+        assert !Arrays.asList(s.ls()).contains("row_M") : "Temporary variable not removed";
+
+        s.set("N", new Double[][]{{1.0, null}, {3.0, 4.0}});
+        assert s.asLogical(s.eval("is.na(N[1,2])")) : "null is not NA";
+        assert s.asDouble(s.eval("N[2,1]")) == 3 : "Wrong N[2,1]";
+
+        s.set("E", new double[0][0]);
+        assert Arrays.equals(s.asIntegers(s.eval("dim(E)")), new int[]{0, 0}) : "Wrong dim";
+
+        s.set("df", M, "a", "b", "c");
+        assert s.asLogical(s.eval("is.data.frame(df)")) : "Not a data.frame";
+        assert Arrays.equals(s.asArray(s.eval("df$c")), new double[]{3, 6}) : "Wrong df$c";
+    }
+
     @Test
     public void testNullEval() throws Exception {
         System.err.println("====================================== testNullEval");